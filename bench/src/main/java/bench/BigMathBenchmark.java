@@ -0,0 +1,106 @@
+package bench;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import immutable.EmptyImList;
+import immutable.ImList;
+import util.BigMath;
+import util.Factorization;
+
+/**
+ * The hot paths of util.BigMath, on numbers of 32 to 2048 bits of three shapes:
+ *     smooth     a product of primes below 2^16
+ *     semiprime  two primes of half the size each
+ *     prime      a prime
+ * primesOf trial divides a fixed window, [2, WINDOW], so its time shows the cost of
+ * one division growing with n rather than the size of sqrt(n).
+ * verify is given every factor but the largest, which it has to find and prove prime
+ * itself, as it does for the client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BigMathBenchmark {
+
+	private static final BigInteger WINDOW = BigInteger.valueOf(1 << 14);
+
+	@Param({"32", "64", "128", "256", "512", "1024", "2048"})
+	public int bits;
+
+	@Param({"smooth", "semiprime", "prime"})
+	public String kind;
+
+	private BigInteger n;
+	private Factorization allButLargest;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random r = new Random(bits * 31 + kind.hashCode());
+		ImList<BigInteger> factors = new EmptyImList<BigInteger>();
+		BigInteger largest;
+		if(kind.equals("prime"))
+			largest = BigInteger.probablePrime(bits, r);
+		else if(kind.equals("semiprime"))
+		{
+			factors = factors.add(BigInteger.probablePrime(bits / 2, r));
+			largest = BigInteger.probablePrime(bits - bits / 2, r);
+		}
+		else
+		{
+			// Smallest first, so the last one drawn is the largest
+			BigInteger product = BigInteger.ONE;
+			BigInteger[] primes = new BigInteger[bits];
+			int k = 0;
+			while(product.bitLength() < bits)
+			{
+				primes[k] = BigInteger.probablePrime(2 + r.nextInt(15), r);
+				product = product.multiply(primes[k++]);
+			}
+			Arrays.sort(primes, 0, k);
+			for(int i = 0; i < k - 1; i++) factors = factors.add(primes[i]);
+			largest = primes[k - 1];
+		}
+		n = largest;
+		for(BigInteger p : factors) n = n.multiply(p);
+		allButLargest = Factorization.of(factors);
+	}
+
+	@Benchmark
+	public BigInteger sqrt() {
+		return BigMath.sqrt(n);
+	}
+
+	@Benchmark
+	public boolean isPrime() {
+		return BigMath.isPrime(n);
+	}
+
+	@Benchmark
+	public Factorization primesOf() {
+		return BigMath.primesOf(n, BigInteger.ONE, WINDOW);
+	}
+
+	@Benchmark
+	public Factorization verify() {
+		return BigMath.verify(allButLargest, n);
+	}
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import immutable.EmptyImList;
+import immutable.ImList;
+
+/**
+ * The immutable list as the factoring code uses it: built one add at a time, searched
+ * with contains (a miss, so the whole list is walked), and iterated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImListBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int size;
+
+	private ImList<Integer> list;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		list = build();
+	}
+
+	@Benchmark
+	public ImList<Integer> add() {
+		return build();
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return list.contains(-1);
+	}
+
+	@Benchmark
+	public long iterate() {
+		long sum = 0;
+		for(Integer x : list) sum += x;
+		return sum;
+	}
+
+	private ImList<Integer> build() {
+		ImList<Integer> l = new EmptyImList<Integer>();
+		for(int i = 0; i < size; i++) l = l.add(i);
+		return l;
+	}
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class of benchmarks.jar: the usual JMH command line, with the GC profiler always on,
+ * so every result comes with its allocation rate (gc.alloc.rate.norm, bytes per operation).
+ *     java -jar bench/target/benchmarks.jar [JMH options] [benchmark regexps]
+ */
+public class Run {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions command = new CommandLineOptions(args);
+		if(command.shouldHelp())
+		{
+			command.showHelp();
+			return;
+		}
+		if(command.shouldList())
+		{
+			new Runner(command).list();
+			return;
+		}
+		Options options = new OptionsBuilder().parent(command).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
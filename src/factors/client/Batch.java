@@ -0,0 +1,220 @@
+package factors.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.Factorization;
+
+/**
+ * Batch mode for PrimeFactorsClient: factors every number in a file (or standard input),
+ * one per line, and writes one result per line.
+ *
+ * Up to inflight numbers are factored at once, each on a virtual thread of its own, so
+ * the servers always have work queued instead of waiting on the Client between numbers.
+ * Results go out as CSV ("n,factors" with the factors joined by '*') or JSON lines
+ * ({"n":"6","factors":["2","3"]}), in input order or in the order they complete.
+ * Lines that aren't numbers of at least 2, and numbers whose answers don't check out,
+ * get "invalid" instead of factors. The throughput is reported on standard error at the end.
+ *
+ * Options:
+ *     --batch[=FILE]              read FILE (default standard input)
+ *     --out=FILE                  write FILE (default standard output)
+ *     --format=csv|jsonl          default csv
+ *     --order=input|completion    default input
+ *     --inflight=N                default 64
+ */
+class Batch {
+	private static final int DEFAULT_INFLIGHT = 64;
+
+	private String in = null;			// null: standard input
+	private String out = null;			// null: standard output
+	private boolean json = false;
+	private boolean inputOrder = true;
+	private int inflight = DEFAULT_INFLIGHT;
+
+	private PrintWriter output;
+	// Guards the output and everything below it. Not a monitor: the numbers' threads are
+	// virtual, and one writing a result while holding a monitor pins its carrier.
+	private final ReentrantLock lock = new ReentrantLock();
+	// In input order, a number's slot is only given back once its result is written,
+	// so results waiting on an earlier one never number more than inflight.
+	private Semaphore slots;
+	private final Map<Long, String> waiting = new HashMap<Long, String>();
+	private long nextToWrite = 0;
+	private long done = 0, invalid = 0;
+
+    /**
+     * @param options the Client's "--" arguments
+     * @throws IllegalArgumentException if one of them isn't a batch option, or there's no "--batch"
+     */
+	Batch(List<String> options)
+	{
+		boolean batch = false;
+		for(String option : options)
+		{
+			String value = option.indexOf('=') < 0 ? null : option.substring(option.indexOf('=') + 1);
+			if(option.equals("--batch")) batch = true;
+			else if(option.startsWith("--batch=")) {batch = true; in = value;}
+			else if(option.startsWith("--out=")) out = value;
+			else if(option.equals("--format=csv")) json = false;
+			else if(option.equals("--format=jsonl")) json = true;
+			else if(option.equals("--order=input")) inputOrder = true;
+			else if(option.equals("--order=completion")) inputOrder = false;
+			else if(option.startsWith("--inflight=")) inflight = Integer.parseInt(value);
+			else throw new IllegalArgumentException(option);
+		}
+		if(!batch || inflight < 1) throw new IllegalArgumentException();
+	}
+
+    /**
+     * @effects factors every number in the input over the servers in links, and writes the results
+     */
+	void run(ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+	{
+		BufferedReader input = in == null
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII))
+				: Files.newBufferedReader(Paths.get(in), StandardCharsets.US_ASCII);
+		output = out == null
+				? new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII))
+				: new PrintWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.US_ASCII));
+		slots = new Semaphore(inflight);
+		if(!json) output.println("n,factors");
+
+		long start = System.nanoTime();
+		long index = 0;
+		try
+		{
+			for(String line = input.readLine(); line != null; line = input.readLine())
+			{
+				final String text = line.trim();
+				if(text.isEmpty()) continue;
+				final long i = index++;
+				slots.acquire();
+				Thread.ofVirtual().start(() -> finish(i, result(text, links, fanIn)));
+			}
+			slots.acquire(inflight);	// every result is written
+		}
+		finally
+		{
+			input.close();
+			output.flush();
+			if(out != null) output.close();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("Factored %d numbers (%d invalid) in %.2f s: %.1f numbers/s%n",
+				done, invalid, seconds, done / Math.max(seconds, 1e-9));
+	}
+
+	// One output line for one input line
+	private String result(String text, ArrayList<ServerLink> links, FanIn fanIn)
+	{
+		Factorization factors = null;
+		try
+		{
+			BigInteger n = new BigInteger(text);
+			if(n.compareTo(BigInteger.TWO) >= 0) factors = PrimeFactorsClient.factor(n, links, fanIn);
+		}
+		catch(Exception e){}	// not a number, or the servers let us down; either way it's invalid
+		StringBuilder line = new StringBuilder();
+		if(json)
+		{
+			line.append("{\"n\":").append(jsonString(text));
+			if(factors == null) line.append(",\"error\":\"invalid\"}");
+			else
+			{
+				line.append(",\"factors\":[");
+				String separator = "\"";
+				for(BigInteger factor : factors)
+				{
+					line.append(separator).append(factor).append('"');
+					separator = ",\"";
+				}
+				line.append("]}");
+			}
+		}
+		else
+		{
+			line.append(csvField(text)).append(',');
+			if(factors == null) line.append("invalid");
+			else
+			{
+				String separator = "";
+				for(BigInteger factor : factors)
+				{
+					line.append(separator).append(factor);
+					separator = "*";
+				}
+			}
+		}
+		lock.lock();
+		try
+		{
+			done++;
+			if(factors == null) invalid++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return line.toString();
+	}
+
+	// Writes the result for input line index, in whichever order was asked for
+	private void finish(long index, String line)
+	{
+		lock.lock();
+		try
+		{
+			if(!inputOrder)
+			{
+				output.println(line);
+				slots.release();
+				return;
+			}
+			waiting.put(index, line);
+			for(String next = waiting.remove(nextToWrite); next != null; next = waiting.remove(nextToWrite))
+			{
+				output.println(next);
+				nextToWrite++;
+				slots.release();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private static String csvField(String text)
+	{
+		if(text.indexOf(',') < 0 && text.indexOf('"') < 0) return text;
+		return "\"" + text.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String jsonString(String text)
+	{
+		StringBuilder s = new StringBuilder("\"");
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c == '"' || c == '\\') s.append('\\').append(c);
+			else if(c < 0x20 || c > 0x7e) s.append(String.format("\\u%04x", (int) c));
+			else s.append(c);
+		}
+		return s.append('"').toString();
+	}
+}
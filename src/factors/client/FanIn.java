@@ -0,0 +1,156 @@
+package factors.client;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every server's messages, sorted by the number they are about.
+ *
+ * Each ServerLink gets a virtual thread of its own that reads from it and passes whatever
+ * the server says to the Mailbox open for that number, so whoever is factoring it handles
+ * whichever server speaks first. A slow or chatty server holds up nobody else, and nothing
+ * polls: with no messages, take() simply sleeps. Messages about numbers nobody has open
+ * are late answers to finished work, and are dropped.
+ */
+class FanIn {
+
+    /**
+     * One message, and which server (its index in the link list) sent it.
+     */
+	static class Reply {
+		final int server;
+		final Message message;
+		private final IOException error;	// the server's connection failed instead
+
+		private Reply(int server, Message message, IOException error)
+		{
+			this.server = server;
+			this.message = message;
+			this.error = error;
+		}
+	}
+
+    /**
+     * The messages about one number, in the order they arrive.
+     */
+	class Mailbox {
+		private final BigInteger n;
+		private final BlockingQueue<Reply> queue = new LinkedBlockingQueue<Reply>();
+
+		private Mailbox(BigInteger n)
+		{
+			this.n = n;
+		}
+
+	    /**
+	     * @return the next message, waiting for one if need be
+	     * @throws IOException if a server's connection failed
+	     */
+		Reply take() throws IOException, InterruptedException
+		{
+			if(failed != null) throw failed;
+			return check(queue.take());
+		}
+
+	    /**
+	     * @return the next message if one has already arrived, or null
+	     * @throws IOException if a server's connection failed
+	     */
+		Reply poll() throws IOException
+		{
+			if(failed != null) throw failed;
+			Reply reply = queue.poll();
+			return reply == null ? null : check(reply);
+		}
+
+	    /**
+	     * @effects messages about n are dropped from now on, and n may be opened again
+	     */
+		void close()
+		{
+			lock.lock();
+			try
+			{
+				mailboxes.remove(n, this);
+				closed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	private final Map<BigInteger, Mailbox> mailboxes = new ConcurrentHashMap<BigInteger, Mailbox>();
+	private volatile IOException failed;	// once one connection fails, every later call says so
+	// open() waits on closed for a number to be let go. Not the map's monitor: the callers
+	// are virtual threads, and waiting on a monitor pins the carrier for as long as it takes.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition closed = lock.newCondition();
+
+    /**
+     * @effects starts reading every link in links
+     */
+	FanIn(List<ServerLink> links)
+	{
+		for(int i = 0; i < links.size(); i++)
+		{
+			final int server = i;
+			final ServerLink link = links.get(i);
+			Thread.ofVirtual().name("server-" + i).start(() -> {
+				try
+				{
+					while(true) deliver(new Reply(server, link.read(), null));
+				}
+				catch(IOException e){deliver(new Reply(server, null, e));}
+			});
+		}
+	}
+
+    /**
+     * @requires the caller closes the mailbox once done with n
+     * @return the mailbox for messages about n. If someone else has n open, waits until they close it:
+     *  servers' answers only say which number they are about, so only one caller at a time can ask.
+     */
+	Mailbox open(BigInteger n) throws InterruptedException
+	{
+		Mailbox box = new Mailbox(n);
+		lock.lock();
+		try
+		{
+			while(mailboxes.putIfAbsent(n, box) != null) closed.await();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return box;
+	}
+
+	private void deliver(Reply reply)
+	{
+		if(reply.error != null)
+		{
+			// Set before telling anyone, so a mailbox opened from here on sees it in take()
+			failed = new IOException("server " + reply.server + " failed", reply.error);
+			for(Mailbox box : mailboxes.values()) box.queue.add(reply);
+			return;
+		}
+		if(reply.message.n == null) return;
+		Mailbox box = mailboxes.get(reply.message.n);
+		if(box != null) box.queue.add(reply);
+	}
+
+	private Reply check(Reply reply) throws IOException
+	{
+		if(reply.error != null) throw failed;
+		return reply;
+	}
+}
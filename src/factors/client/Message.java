@@ -0,0 +1,60 @@
+package factors.client;
+
+import java.math.BigInteger;
+
+/**
+ * One message from a server, in whichever wire format it came.
+ */
+class Message {
+	final String verb;		// "found", "done", "progress", "rel" or "invalid"; "" for anything else
+	final BigInteger n;		// the number it is about, or null if unknown
+	final BigInteger value;	// found: the factor; rel: y
+	final long[] args;		// done: the request's numbers after n; progress: y; rel: the primes
+
+	Message(String verb, BigInteger n, BigInteger value, long[] args)
+	{
+		this.verb = verb;
+		this.n = n;
+		this.value = value;
+		this.args = args;
+	}
+
+    /**
+     * @return true if this is a verb message about n
+     */
+	boolean is(String verb, BigInteger n)
+	{
+		return this.verb.equals(verb) && n.equals(this.n);
+	}
+
+    /**
+     * @return the message in a text line. Lines that don't parse come back with verb "".
+     */
+	static Message parse(String line)
+	{
+		String[] words = line.split(" ");
+		try
+		{
+			String verb = words[0];
+			if(verb.equals("found") && words.length == 3)
+				return new Message(verb, new BigInteger(words[1]), new BigInteger(words[2]), null);
+			if(verb.equals("done") && words.length >= 3)
+				return new Message(verb, new BigInteger(words[1]), null, longs(words, 2));
+			if(verb.equals("progress") && words.length == 3)
+				return new Message(verb, new BigInteger(words[1]), null, longs(words, 2));
+			if(verb.equals("rel") && words.length >= 4)
+				return new Message(verb, new BigInteger(words[1]), new BigInteger(words[2]), longs(words, 3));
+			if(verb.startsWith("invalid"))
+				return new Message("invalid", null, null, null);
+		}
+		catch(NumberFormatException e){}
+		return new Message("", null, null, null);
+	}
+
+	private static long[] longs(String[] words, int from)
+	{
+		long[] result = new long[words.length - from];
+		for(int i = 0; i < result.length; i++) result[i] = Long.parseLong(words[from + i]);
+		return result;
+	}
+}
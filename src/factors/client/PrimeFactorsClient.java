@@ -3,17 +3,22 @@ package factors.client;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.math.BigInteger;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import immutable.EmptyImList;
+import factors.store.FactorStore;
 import immutable.ImList;
+import immutable.NonEmptyImList;
 import util.BigMath;
+import util.Factorization;
+import util.Siqs;
 
 /**
  *  PrimeFactorsClient class for PrimeFactorsServer.  
@@ -31,10 +36,62 @@ import util.BigMath;
  *  that can be processed is a number.  If your input is not of the correct format,
  *  it's ignored and the Client will request another input.
  *  
- *  The Client then distributes to each server the appropriate range of values
- *  to search for prime factors, then listens for their answers and aggregates them.
+ *  The Client then hands the servers small ranges of values to search for prime
+ *  factors, giving more to whichever servers finish first, and aggregates their answers.
+ *  Numbers too big to search by ranges are instead sent to every server at once,
+ *  each running Pollard-Brent rho from a different seed; the first answer wins.
+ *  The biggest numbers are split by elliptic curves, with each server running
+ *  its own batches of curves until one of them finds a factor. Pieces of up to
+ *  100 digits that survive a short run of curves go to the quadratic sieve: every
+ *  server sieves its own polynomials and streams relations back, and the Client
+ *  does the linear algebra.
+ *
+ *  Each server is read by a virtual thread of its own, and the Client handles
+ *  whichever server's message comes in first, so one slow server never holds
+ *  up the others, and hundreds of servers cost no more to listen to than two.
+ *
+ *  With "--batch" the Client instead factors a whole file of numbers, many at
+ *  once, and writes the results to a CSV or JSON lines file (see Batch).
+ *
+ *  Messages go over the binary format in factors.protocol.Wire where the server
+ *  agrees to it, and as text lines otherwise; "--text" on the command line
+ *  sticks to text.
+ *
+ *  "--store=DIR" keeps every factorization the Client works out in a FactorStore
+ *  in DIR, and answers numbers already there without asking the servers.
  */
 public class PrimeFactorsClient {
+
+	// Numbers up to this many bits are split into ranges; up to RHO_BITS they're handed to rho.
+	private static final int RANGE_BITS = 64;
+	// Bigger numbers than this are split with elliptic curves.
+	private static final int RHO_BITS = 90;
+	// ECM schedule: after ECM_CURVES[i] curves in total, move up to stage 1 bound ECM_B1[i+1].
+	// (The usual table for finding factors of 15, 20, 25, 30, 35 and 40 digits.)
+	private static final long[] ECM_B1     = {2000, 11000, 50000, 250000, 1000000, 3000000};
+	private static final int[]  ECM_CURVES = {25,   115,   415,   1115,   2915,    8015};
+	// Curves per "ecm" request; small enough that a server soon comes back for more.
+	private static final int CURVES_PER_REQUEST = 4;
+	// Up to this many bits, pieces that survive SIQS_CURVES curves go to the quadratic sieve.
+	private static final int SIQS_BITS = 330;
+	private static final int SIQS_CURVES = 115;
+	// Polynomial a's per "siqs" request
+	private static final int POLYS_PER_REQUEST = 2;
+	// Range scheduling: requests kept in flight per server, how long each should take,
+	// the smallest chunk worth a message, and how finely to cut the range before anything is measured.
+	private static final int PIPELINE_DEPTH = 2;
+	private static final long CHUNK_MILLIS = 200;
+	private static final long MIN_CHUNK = 4096;
+	private static final int INITIAL_SPLIT = 16;
+	// Servers send "progress" about once a second; this much silence means one is stuck.
+	private static final long STALL_MILLIS = 5000;
+	// Which server each range search starts with, so that many small numbers at once
+	// (see Batch) are spread over every server instead of all going to the first.
+	private static final AtomicInteger rotation = new AtomicInteger();
+	// Bytes a "--store" log may grow to before the cheapest answers are dropped
+	private static final long STORE_LIMIT = 256L << 20;
+	// Factorizations from earlier runs, if "--store=DIR" asked for them
+	private static FactorStore store = null;
     
     /**
      * @param args String array containing Program arguments.  Each String indicates a 
@@ -46,37 +103,71 @@ public class PrimeFactorsClient {
     	// 1. Check for proper program arguments; return otherwise.
     	ArrayList<Integer> portList = new ArrayList<Integer>();
     	String host = "localhost";
+    	boolean binary = true;
+    	Batch batch = null;
+    	String storeDir = null;
 		try
 		{
-			if( args.length == 0) throw new Exception();
+			ArrayList<String> batchOptions = new ArrayList<String>();
 			for(int i = 0; i < args.length; i++)
-				portList.add(Integer.parseInt(args[i].replaceAll("[^0-9]", "")));
+			{
+				if(args[i].equals("--text")) binary = false;
+				else if(args[i].startsWith("--store=")) storeDir = args[i].substring("--store=".length());
+				else if(args[i].startsWith("--")) batchOptions.add(args[i]);
+				else portList.add(Integer.parseInt(args[i].replaceAll("[^0-9]", "")));
+			}
+			if(portList.isEmpty()) throw new Exception();
+			if(!batchOptions.isEmpty()) batch = new Batch(batchOptions);
 		}
 		catch(Exception e)
 		{
 			respond("Please use command-line arguments of the form " +
 					"\"localhost:4444 localhost:5555 localhost:6666\",\n" +
-					"    where 4444, 5555, and 6666 are the ports to connect to.");
+					"    where 4444, 5555, and 6666 are the ports to connect to.\n" +
+					"    Add \"--text\" to use the text protocol, \"--store=DIR\" to keep answers in DIR, and for batch mode:\n" +
+					"    --batch[=FILE] [--out=FILE] [--format=csv|jsonl] [--order=input|completion] [--inflight=N]");
 			return;
 		}
+		try
+		{
+			if(storeDir != null) store = new FactorStore(Path.of(storeDir), STORE_LIMIT);
+		}
+		catch(IOException e){respond(e + " Failed to open the store."); return;}
 		
 		// 2. Create lists for factoring n, depending on portList's length
-	   	ArrayList<Socket> socketList     = new ArrayList<Socket>(portList.size());
-	   	ArrayList<BufferedReader> inList = new ArrayList<BufferedReader>(portList.size());
-	   	ArrayList<PrintWriter> outList   = new ArrayList<PrintWriter>(portList.size());
+	   	ArrayList<ServerLink> links = new ArrayList<ServerLink>(portList.size());
+	   	FanIn fanIn;		// every server's messages, as they arrive
 
-	   	try
+	   	try(ExecutorService connecting = Executors.newVirtualThreadPerTaskExecutor())
 	    {
-	      	// Open sockets to the ports provided
-	       	for(int i = 0; i < portList.size(); i++)
-	       	{
-	       		socketList.add(new Socket(host, portList.get(i)));
-	       		inList.add(new BufferedReader( new InputStreamReader(socketList.get(i).getInputStream())));
-	       		outList.add(new PrintWriter( new OutputStreamWriter( socketList.get(i).getOutputStream())));
-			}
+	      	// Open sockets to the ports provided, all at once rather than waiting on each in turn
+	   		ArrayList<Future<ServerLink>> opening = new ArrayList<Future<ServerLink>>(portList.size());
+	   		final boolean tryBinary = binary;
+       		for(int i = 0; i < portList.size(); i++)
+       		{
+       			final int port = portList.get(i);
+       			opening.add(connecting.submit(() -> new ServerLink(host, port, tryBinary)));
+       		}
+       		for(int i = 0; i < opening.size(); i++) links.add(opening.get(i).get());
+       		fanIn = new FanIn(links);
 	    }	catch(Exception e){respond("Connection failed! Please make sure the Servers are already running on the ports requested."); return;}
+
+	   	if(batch != null)
+	   	{
+	   		try
+	   		{
+	   			batch.run(links, fanIn);
+	   		}
+	   		catch(InterruptedException e){}
+	   		finally
+	   		{
+	   			for(int i = 0; i < links.size(); i++) links.get(i).close();
+	   			if(store != null) store.close();
+	   		}
+	   		return;
+	   	}
    	
-	       	
+       		
 		// 3. Main loop. Read in number to factor.
 		respond("Hello! ");
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -95,104 +186,410 @@ public class PrimeFactorsClient {
 					respond("invalid");
 					continue;
 				}
-				if( BigMath.sqrt(n).compareTo(new BigInteger(String.valueOf(portList.size()))) < 0)
-				{ // sqrt(n) can't be less than the number of servers
-					respond("invalid");
-					continue;
-				}
 			} catch (NumberFormatException e) {
 				if(input.length() == 0) isRunning = false; // If they hit Enter for a blank line, break from the main loop
 				else respond("invalid");
 				continue;
 			} catch(IOException e){e.printStackTrace(); break;}
 				
-			// 4. Split up the work for factoring n, depending on portList's length
-
-	        	
-		        // Send ranges to our servers ^_^
-		       	// Each range is from [x, x+q-1] where
-		       	//  q == sqrt(n)/#servers						(i.e. n==144 and 3 servers means q==12/3 or 4)
-		       	//  x == 1 then x += q for subsequent ranges	(i.e. n==144 and 3 servers means [1, 4], [5, 8], [9, 12])
-		       	// i.e. for 3 servers we have the ranges [1, q], [q+1, 2q], [2q+1, 3q]
-		       	// (Pretty neat, huh?)
+			// 4-6. Factor n across the servers and display answer to user
 			try
 			{
-		       	String size = Integer.toString(portList.size());
-		       	BigInteger one = BigInteger.ONE;
-		       	BigInteger x = one;
-		       	BigInteger q = BigMath.sqrt(n).divide(new BigInteger(size));
-		       	if (q == BigInteger.ZERO) {
-		       		q = one;
-		       	}
-		       	for(int i = 0; i < portList.size(); i++)
+		       	Factorization factors = factor(n, links, fanIn);
+		       	if(factors != null)
 		       	{
-		       		outList.get(i).println("factor " + n + " " + x + " " + x.add(q).subtract(one));
-		       		outList.get(i).flush();
-		       		x = x.add(q);
-		       	}
-		       		
-		       	// 5. Listen for "found factor"/"done" messages and aggregate them
-		       	ImList<BigInteger> factors = new EmptyImList<BigInteger>();			//Holds factors returned from PrimeFactorsServer
-		       	ArrayList<Boolean> portsOpen = new ArrayList<Boolean>();			//.get(i) TRUE -> port i open
-		       	for(int i = 0; i < portList.size(); i++)portsOpen.add(Boolean.TRUE);
-
-		       	do
-		       	{
-		       		for(int i = 0; i < portList.size(); i++)
+		       		StringBuilder response = new StringBuilder().append(n).append('=');
+		       		String separator = "";
+		       		for(BigInteger factor : factors)
 		       		{
-		       			if(portsOpen.get(i))
-		       			{
-		       				// Parse the received input
-		       				String[] line = inList.get(i).readLine().split(" ");
-		       				if(line.length == 3 &&
-		       				   line[0].matches("found") && 
-		       				   n.equals(new BigInteger(line[1])))
-		       				{	// "found n factor" -> add factor to list
-		       					factors = factors.add(new BigInteger(line[2]));
-		       				}
-		       				else if(line.length == 4 &&
-		       						line[0].matches("done") &&
-		       						n.equals(new BigInteger(line[1])))
-		       				{	// "done n low hi" -> mark port as closed
-		          					portsOpen.set(i, Boolean.FALSE);
-		       				}
-		       				// Ignore any other messages
-		       			}
+		       			response.append(separator).append(factor);
+		       			separator = "*";
 		       		}
-				}while(Collections.frequency(portsOpen, Boolean.FALSE) != portList.size());
-		       		
-		       	// 6. Confirm factors and display answer to user
-		       	factors = BigMath.getVerifiedPrimes(factors, n);
-		       	if(BigMath.isValidPrimeList(factors))
-		       	{
-		       		Iterator<BigInteger> it = factors.iterator();
-		       		String response = n + "=" + it.next();
-		       		if(factors.size() == 1) { // only one factor
-		       			response += "*1";
+		       		if(factors.count() == 1) { // only one factor
+		       			response.append("*1");
 		       		}
-		       		while( it.hasNext())
-		       		{
-		       			response += "*" + it.next();
-		       		}
-		       		respond(response);
+		       		respond(response.toString());
 		       	}
 		       	else
 		       	{
 		       		respond("invalid");
 		       	}
 		    }catch(Exception e){respond("invalid");
-		    	for(int i = 0; i < portList.size(); i++)
-		    	{
-		    		if(inList.get(i) != null) inList.get(i).close();
-		    		if(outList.get(i) != null) outList.get(i).close();
-		    		if(socketList.get(i) != null) socketList.get(i).close();
-		    	}
+		    	for(int i = 0; i < links.size(); i++) links.get(i).close();
 		    }
 			
 		}// End while
+		if(store != null) store.close();
 		return;
     }// End main
 
+    /**
+     * Steps 4 to 6 for one number. Any number of threads may call this at once.
+     * @requires n >= 2
+     * @return the prime factorization of n, or null if the servers' answers don't add up to n
+     */
+    static Factorization factor(BigInteger n, ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	Factorization factors = store == null ? null : store.get(n);
+       	if(factors == null)
+       	{
+       		long start = System.currentTimeMillis();
+			// 4. Split up the work for factoring n, depending on its size and portList's length
+			// 5. Listen for "found factor"/"done" messages and aggregate them
+	       	Factorization found;		//Holds factors returned from PrimeFactorsServer
+	       	if(n.bitLength() <= RANGE_BITS) found = factorByRanges(n, links, fanIn);
+	       	else if(n.bitLength() <= RHO_BITS) found = factorByRho(n, links, fanIn);
+	       	else found = factorByCurves(n, links, fanIn);
+
+	       	// 6. Confirm factors
+	       	factors = found == null ? null : BigMath.verify(found, n);
+	       	if(factors == null) return null;
+	       	if(store != null) store.put(n, factors, System.currentTimeMillis() - start);
+       	}
+       	return factors;
+    }
+
+    /**
+     * Steps 4 and 5 for n up to RANGE_BITS bits: the servers trial divide [1, sqrt(n)] between them.
+     * The range is cut into many chunks, handed out in order as servers ask for more,
+     * so a fast server simply does more of them and a slow one never holds up the rest.
+     * Every server keeps PIPELINE_DEPTH chunks in flight, and each new chunk is sized from
+     * that server's measured speed to take about CHUNK_MILLIS.
+     * As factors come in, n is divided down to its cofactor m. Servers still working get
+     * "update n m", so they stop at sqrt(m) instead of sqrt(n), and once m is 1 or prime
+     * they get "cancel n" and no more chunks are handed out.
+     * Factors and "progress" lines stream in while chunks run; a busy server that has said
+     * nothing for STALL_MILLIS gets no more chunks until it speaks again.
+     * Answers are handled in the order they arrive from any server (see FanIn), and each
+     * batch of them is followed by one round of top-ups and updates.
+     * @return the "found" factors from all servers, once every chunk has come back "done"
+     */
+    private static Factorization factorByRanges(BigInteger n,
+    		ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	FanIn.Mailbox inbox = fanIn.open(n);
+       	try
+       	{
+       		// n has at most RANGE_BITS bits, so every bound fits in a long.
+       		long root = BigMath.sqrt(n).longValue();
+       		long next = 1;							// first number not handed out yet
+       		long first = Math.max(MIN_CHUNK, root / (links.size() * INITIAL_SPLIT));
+       		ArrayList<ArrayDeque<long[]>> pending = new ArrayList<ArrayDeque<long[]>>();	//.get(i) {low, high, sent} for server i
+       		double[] rate = new double[links.size()];	// numbers per millisecond, per server; 0 until measured
+       		long[] heard = new long[links.size()];	// when server i last said anything
+       		int outstanding = 0;
+       		BigInteger m = n;						// what's left of n once the factors found so far are divided out
+       		boolean cancelled = false;
+       		int start = Math.floorMod(rotation.getAndIncrement(), links.size());
+
+       		// Factors arrive in whatever order the servers find them, repeats one at a time
+       		Factorization.Builder factors = new Factorization.Builder();
+       		for(int i = 0; i < links.size(); i++) pending.add(new ArrayDeque<long[]>());
+       		while(true)
+       		{
+       			// Top up every server's pipeline, except busy servers that have gone quiet
+       			long now = System.currentTimeMillis();
+       			for(int k = 0; k < links.size() && next <= root; k++)
+       			{
+       				int i = (start + k) % links.size();
+       				if(pending.get(i).isEmpty()) heard[i] = now;
+       				else if(now - heard[i] > STALL_MILLIS) continue;
+       				while(pending.get(i).size() < PIPELINE_DEPTH && next <= root)
+       				{
+       					long size = rate[i] > 0 ? Math.max(MIN_CHUNK, (long) (rate[i] * CHUNK_MILLIS)) : first;
+       					long high = size > root - next ? root : next + size - 1;
+       					links.get(i).send("factor", n, next, high);
+       					pending.get(i).add(new long[] {next, high, System.currentTimeMillis()});
+       					outstanding++;
+       					next = high + 1;
+       				}
+       			}
+       			if(outstanding == 0) return factors.build();
+
+       			BigInteger before = m;
+       			// Wait for any server to speak, then take everything else that has arrived too.
+       			for(FanIn.Reply reply = inbox.take(); reply != null; reply = inbox.poll())
+       			{
+       				int i = reply.server;
+       				Message msg = reply.message;
+       				heard[i] = System.currentTimeMillis();
+       				if(msg.is("found", n))
+       				{	// "found n factor" -> add factor to list
+       					BigInteger x = msg.value;
+       					if(x.compareTo(BigInteger.ONE) > 0) factors.add(x);
+       					if(x.compareTo(BigInteger.ONE) > 0 && m.mod(x).signum() == 0) m = m.divide(x);
+       				}
+       				else if(msg.is("done", n) && msg.args.length == 2)
+       				{	// "done n low hi" -> that chunk is finished; learn how fast this server is
+       					long low = msg.args[0];
+       					for(Iterator<long[]> it = pending.get(i).iterator(); it.hasNext(); )
+       					{
+       						long[] chunk = it.next();
+       						if(chunk[0] != low) continue;
+       						it.remove();
+       						outstanding--;
+       						long millis = Math.max(1, System.currentTimeMillis() - chunk[2]);
+       						double sample = (double) (chunk[1] - chunk[0] + 1) / millis;
+       						rate[i] = rate[i] > 0 ? (rate[i] + sample) / 2 : sample;
+       						break;
+       					}
+       				}
+       				// Ignore any other messages; "progress n x" is only a sign of life
+       			}
+       			if(m != before && !cancelled)
+       			{
+       				if(m.equals(BigInteger.ONE) || BigMath.isPrime(m))
+       				{	// Nothing left to search for; verify supplies the last prime.
+       					cancelAll(n, links);
+       					cancelled = true;
+       					next = root + 1;
+       				}
+       				else
+       				{
+       					root = Math.min(root, BigMath.sqrt(m).longValue());
+       					for(int i = 0; i < links.size(); i++)
+       					{
+       						if(pending.get(i).isEmpty()) continue;
+       						links.get(i).update(n, m);
+       					}
+       				}
+       			}
+       		}
+       	}
+       	finally
+       	{
+       		forget(n, links);
+       		inbox.close();
+       	}
+    }
+
+    /**
+     * Steps 4 and 5 for n over RANGE_BITS bits: every server gets "rho n seed" with its own seed
+     * and factors all of n by itself. The first server to say "done" wins, and the rest get
+     * "cancel n". Their late messages are dropped once n is closed (see FanIn).
+     * @return the complete factorization from the winning server
+     */
+    private static Factorization factorByRho(BigInteger n,
+    		ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	FanIn.Mailbox inbox = fanIn.open(n);
+       	try
+       	{
+       		ArrayList<Factorization.Builder> found = new ArrayList<Factorization.Builder>();	//.get(i) factors from server i
+       		for(int i = 0; i < links.size(); i++)
+       		{
+       			links.get(i).send("rho", n, i + 1);
+       			found.add(new Factorization.Builder());
+       		}
+
+       		while(true)
+       		{
+       			// Whichever server speaks first; the winner may be any of them.
+       			for(FanIn.Reply reply = inbox.take(); reply != null; reply = inbox.poll())
+       			{
+       				int i = reply.server;
+       				Message msg = reply.message;
+       				if(msg.is("found", n))
+       				{	// "found n factor" -> add factor to this server's list
+       					if(msg.value.compareTo(BigInteger.ONE) > 0) found.get(i).add(msg.value);
+       				}
+       				else if(msg.is("done", n) && msg.args.length == 1)
+       				{	// "done n seed" -> this server has all of n
+       					cancelAll(n, links);
+       					return found.get(i).build();
+       				}
+       				// Ignore any other messages
+       			}
+       		}
+       	}
+       	finally
+       	{
+       		forget(n, links);
+       		inbox.close();
+       	}
+    }
+
+    /**
+     * Steps 4 and 5 for n over RHO_BITS bits. n is split into pieces with elliptic curves until
+     * every piece is prime or small enough for factorByRho. The curves come from a shared
+     * schedule: each server is handed "ecm m B1 B2 curves seed" with the next unused seeds, and
+     * handed another batch whenever it reports "done" with nothing found.
+     * @return the prime factorization of n, or null if a server's answers didn't add up
+     */
+    private static Factorization factorByCurves(BigInteger n,
+    		ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	Factorization factors = Factorization.ONE;
+       	ImList<BigInteger> pieces = new NonEmptyImList<BigInteger>(n);	// still to be factored
+       	while(!pieces.isEmpty())
+       	{
+       		BigInteger m = pieces.first();
+       		pieces = pieces.rest();
+       		if(BigMath.isPrime(m))
+       		{
+       			factors = factors.times(m, 1);
+       		}
+       		else if(m.bitLength() <= RHO_BITS)
+       		{
+       			Factorization rho = BigMath.verify(factorByRho(m, links, fanIn), m);
+       			if(rho == null) return null;
+       			factors = factors.times(rho);
+       		}
+       		else if(m.bitLength() <= SIQS_BITS)
+       		{
+       			// Curves are cheap at finding smallish factors, so try a few before sieving.
+       			BigInteger d = findCurveFactor(m, SIQS_CURVES, links, fanIn);
+       			if(d == null)
+       			{
+       				// The sieve can't split a perfect power, however long it runs: take the root.
+       				BigInteger root = BigMath.perfectPowerRoot(m);
+       				d = root != null ? root : findSieveFactor(m, links, fanIn);
+       			}
+       			pieces = pieces.add(d).add(m.divide(d));
+       		}
+       		else
+       		{
+       			BigInteger d = findCurveFactor(m, Long.MAX_VALUE, links, fanIn);
+       			pieces = pieces.add(d).add(m.divide(d));
+       		}
+       	}
+       	return factors;
+    }
+
+    /**
+     * Hands out batches of curves for m to every server until one of them finds a factor,
+     * then sends "cancel m" to all of them.
+     * @param maxCurves stop handing out batches after this many curves
+     * @return a nontrivial factor of m, or null if maxCurves curves found nothing
+     */
+    private static BigInteger findCurveFactor(BigInteger m, long maxCurves,
+    		ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	FanIn.Mailbox inbox = fanIn.open(m);
+       	try
+       	{
+       		long seed = 0;		// next unused curve
+       		int busy = 0;		// servers with a batch outstanding
+       		for(int i = 0; i < links.size() && seed < maxCurves; i++)
+       		{
+       			sendCurves(m, seed, links.get(i));
+       			seed += CURVES_PER_REQUEST;
+       			busy++;
+       		}
+       		while(busy > 0)
+       		{
+       			for(FanIn.Reply reply = inbox.take(); reply != null; reply = inbox.poll())
+       			{
+       				int i = reply.server;
+       				Message msg = reply.message;
+       				if(msg.is("found", m))
+       				{	// "found m d" -> d splits m
+       					cancelAll(m, links);
+       					return msg.value;
+       				}
+       				else if(msg.is("done", m) && msg.args.length == 4)
+       				{	// "done m B1 B2 curves seed" with nothing found -> next batch
+       					if(seed < maxCurves)
+       					{
+       						sendCurves(m, seed, links.get(i));
+       						seed += CURVES_PER_REQUEST;
+       					}
+       					else busy--;
+       				}
+       				// Ignore any other messages
+       			}
+       		}
+       		return null;
+       	}
+       	finally
+       	{
+       		forget(m, links);
+       		inbox.close();
+       	}
+    }
+
+    /**
+     * Runs the quadratic sieve on m with every server sieving its own polynomials.
+     * Each server gets "siqs m first count" for the next unused a's, and another batch each
+     * time it says "done", until the relations it streams back are enough to solve.
+     * The linear algebra runs here. If it comes up short, more relations are collected.
+     * @requires m odd, composite and not a perfect power
+     * @return a nontrivial factor of m
+     */
+    private static BigInteger findSieveFactor(BigInteger m,
+    		ArrayList<ServerLink> links, FanIn fanIn) throws IOException, InterruptedException
+    {
+       	FanIn.Mailbox inbox = fanIn.open(m);
+       	try
+       	{
+       		Siqs siqs = new Siqs(m);
+       		if(siqs.smallFactor() != null) return siqs.smallFactor();
+       		long index = 0;		// next unused a
+       		for(int i = 0; i < links.size(); i++)
+       		{
+       			links.get(i).send("siqs", m, index, POLYS_PER_REQUEST);
+       			index += POLYS_PER_REQUEST;
+       		}
+       		while(true)
+       		{
+       			for(FanIn.Reply reply = inbox.take(); reply != null; reply = inbox.poll())
+       			{
+       				int i = reply.server;
+       				Message msg = reply.message;
+       				if(msg.is("rel", m))
+       				{	// "rel m y p1 .. pk" -> one more relation (addRelation checks it)
+       					siqs.addRelation(msg.value, msg.args);
+       					if(siqs.relations() >= siqs.relationsNeeded())
+       					{
+       						cancelAll(m, links);
+       						BigInteger d = siqs.solve();
+       						if(d != null) return d;
+       						// Not enough after all; the servers' "done"s will fetch more work.
+       					}
+       				}
+       				else if(msg.is("done", m) && msg.args.length == 2)
+       				{	// "done m first count" -> next batch of a's
+       					links.get(i).send("siqs", m, index, POLYS_PER_REQUEST);
+       					index += POLYS_PER_REQUEST;
+       				}
+       				// Ignore any other messages
+       			}
+       		}
+       	}
+       	finally
+       	{
+       		forget(m, links);
+       		inbox.close();
+       	}
+    }
+
+    /**
+     * Sends one batch of curves, starting at seed, with the B1 the schedule calls for at that point.
+     */
+    private static void sendCurves(BigInteger m, long seed, ServerLink link) throws IOException
+    {
+       	int level = 0;
+       	while(level < ECM_CURVES.length - 1 && seed >= ECM_CURVES[level]) level++;
+       	long b1 = ECM_B1[level];
+       	link.send("ecm", m, b1, 100 * b1, CURVES_PER_REQUEST, seed);
+    }
+
+    /**
+     * Tells every server to stop working on n.
+     */
+    private static void cancelAll(BigInteger n, ArrayList<ServerLink> links) throws IOException
+    {
+       	for(int i = 0; i < links.size(); i++) links.get(i).cancel(n);
+    }
+
+    /**
+     * Done with n: whatever the servers still have to say about it is of no interest.
+     */
+    private static void forget(BigInteger n, ArrayList<ServerLink> links)
+    {
+       	for(int i = 0; i < links.size(); i++) links.get(i).forget(n);
+    }
+
     /**
       * @param output message being displayed to User
       */
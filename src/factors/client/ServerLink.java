@@ -0,0 +1,236 @@
+package factors.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import factors.protocol.Wire;
+
+/**
+ * The client's connection to one PrimeFactorsServer.
+ *
+ * On connecting it asks for the binary format (see Wire) and falls back to text if the
+ * server doesn't know it. Either way, requests go out through send(), cancel() and update(),
+ * and answers come back from read() as Messages.
+ * In binary, each n is sent with a request id, and answers name it by that id. forget(n)
+ * drops the id, after which any late answers about n come back with n == null.
+ * One thread may send while another reads (see FanIn).
+ */
+class ServerLink {
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final boolean binary;
+	private final Map<BigInteger, Integer> ids = new ConcurrentHashMap<BigInteger, Integer>();
+	private final Map<Integer, BigInteger> numbers = new ConcurrentHashMap<Integer, BigInteger>();
+	// Keeps one request's bytes together on the socket. A lock rather than synchronized: the
+	// senders are virtual threads, and one blocked entering a monitor would pin its carrier
+	// while the holder is stuck in a socket write.
+	private final ReentrantLock lock = new ReentrantLock();
+	private int nextId = 1;		// guarded by lock
+
+    /**
+     * @param tryBinary ask for the binary format; otherwise stay with text
+     * @throws IOException if the server can't be reached
+     */
+	ServerLink(String host, int port, boolean tryBinary) throws IOException
+	{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);	// requests are small and each is flushed at once; don't hold them back
+		in = new BufferedInputStream(socket.getInputStream());
+		out = new BufferedOutputStream(socket.getOutputStream());
+		boolean agreed = false;
+		if(tryBinary)
+		{
+			line(Wire.HELLO);
+			out.flush();
+			agreed = Wire.HELLO.equals(Wire.readLine(in));	// an older server says "invalid"
+		}
+		binary = agreed;
+	}
+
+	boolean isBinary()
+	{
+		return binary;
+	}
+
+    /**
+     * Sends "verb n args..." for verb factor, rho, ecm or siqs.
+     */
+	void send(String verb, BigInteger n, long... args) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if(binary)
+			{
+				int tag = verb.equals("factor") ? Wire.FACTOR : verb.equals("rho") ? Wire.RHO
+						: verb.equals("ecm") ? Wire.ECM : Wire.SIQS;
+				Wire.Encoder frame = new Wire.Encoder(tag).varint(idOf(n)).big(n);
+				for(int i = 0; i < args.length; i++) frame.varint(args[i]);
+				out.write(frame.frame());
+			}
+			else
+			{
+				StringBuilder line = new StringBuilder(verb).append(' ').append(n);
+				for(int i = 0; i < args.length; i++) line.append(' ').append(args[i]);
+				line(line.toString());
+			}
+			out.flush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+    /**
+     * Sends "cancel n".
+     */
+	void cancel(BigInteger n) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if(binary)
+			{
+				Integer id = ids.get(n);
+				if(id == null) return;	// nothing was ever asked about n
+				out.write(new Wire.Encoder(Wire.CANCEL).varint(id).frame());
+			}
+			else line("cancel " + n);
+			out.flush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+    /**
+     * Sends "update n m".
+     */
+	void update(BigInteger n, BigInteger m) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if(binary)
+			{
+				Integer id = ids.get(n);
+				if(id == null) return;
+				out.write(new Wire.Encoder(Wire.UPDATE).varint(id).big(m).frame());
+			}
+			else line("update " + n + " " + m);
+			out.flush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+    /**
+     * @return the next message from the server
+     * @throws IOException if the server has gone away, or sent a malformed frame
+     */
+	Message read() throws IOException
+	{
+		if(!binary)
+		{
+			String line = Wire.readLine(in);
+			if(line == null) throw new EOFException("server closed the connection");
+			return Message.parse(line);
+		}
+		byte[] payload = Wire.readFrame(in);
+		if(payload == null) throw new EOFException("server closed the connection");
+		try
+		{
+			Wire.Decoder frame = new Wire.Decoder(payload);
+			int tag = frame.tag();
+			BigInteger n = numbers.get((int) frame.varint());
+			switch(tag)
+			{
+				case Wire.FOUND:
+					return new Message("found", n, frame.big(), null);
+				case Wire.DONE:
+					return new Message("done", n, null, varints(frame, frame.varint()));
+				case Wire.PROGRESS:
+					return new Message("progress", n, null, new long[] {frame.varint()});
+				case Wire.REL:
+					BigInteger y = frame.big();
+					long[] primes = new long[count(frame.varint(), payload)];
+					for(int i = 0; i < primes.length; i++) primes[i] = frame.signed();
+					return new Message("rel", n, y, primes);
+				case Wire.INVALID:
+					return new Message("invalid", n, null, null);
+				default:
+					return new Message("", null, null, null);
+			}
+		}
+		catch(IllegalArgumentException e){throw new IOException("malformed frame", e);}
+	}
+
+    /**
+     * @effects answers about n that are still on their way will be ignored
+     */
+	void forget(BigInteger n)
+	{
+		lock.lock();
+		try
+		{
+			Integer id = ids.remove(n);
+			if(id != null) numbers.remove(id);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void close() throws IOException
+	{
+		socket.close();
+	}
+
+	private int idOf(BigInteger n)
+	{
+		Integer id = ids.get(n);
+		if(id == null)
+		{
+			id = nextId++;
+			ids.put(n, id);
+			numbers.put(id, n);
+		}
+		return id;
+	}
+
+	private void line(String line) throws IOException
+	{
+		out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static long[] varints(Wire.Decoder frame, long count)
+	{
+		long[] result = new long[(int) Math.min(count, 16)];
+		if(count != result.length) throw new IllegalArgumentException("too many fields");
+		for(int i = 0; i < result.length; i++) result[i] = frame.varint();
+		return result;
+	}
+
+	// A count read from a frame, checked against the frame's size before anything is allocated for it
+	private static int count(long count, byte[] payload)
+	{
+		if(count > payload.length) throw new IllegalArgumentException("bad count");
+		return (int) count;
+	}
+}
@@ -0,0 +1,254 @@
+package factors.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+
+/**
+ * Both wire formats spoken between PrimeFactorsClient and PrimeFactorsServer.
+ *
+ * Every connection starts in text: one message per line, with n written out in decimal
+ * (see PrimeFactorsServer for the messages). A client that wants the binary format sends
+ * the line HELLO. A server that knows it answers HELLO, and from then on both directions
+ * carry frames instead of lines. Any other answer means the server only speaks text, or
+ * that text requests are still in flight on the connection: only an idle one may switch,
+ * since their answers would come as lines after the frames had started.
+ *
+ * The binary format saves turning n to and from decimal, which is quadratic in its length,
+ * on every message. n travels as BigInteger.toByteArray() bytes, and replies name it by the
+ * request id the client gave it instead of repeating it.
+ *
+ *     frame   = length payload              length = varint, bytes in payload
+ *     payload = tag id field*               id = varint, the client's number for n
+ *
+ *     client -> server                      server -> client
+ *     FACTOR  id n low high                 FOUND    id x
+ *     RHO     id n seed                     DONE     id count arg*   (the request's varints)
+ *     ECM     id n B1 B2 curves seed        PROGRESS id y
+ *     SIQS    id n first count              REL      id y count p*   (p signed: -1 is the sign)
+ *     CANCEL  id                            INVALID  id
+ *     UPDATE  id m
+ *
+ * varint: unsigned LEB128, seven bits a byte, low bits first, high bit set on all but the last.
+ * signed: zigzag then varint, so small negative numbers stay short.
+ * n, m, x, y: varint byte count, then BigInteger.toByteArray() (big-endian two's complement).
+ */
+public class Wire {
+
+	/** The line that asks for, and agrees to, the binary format. */
+	public static final String HELLO = "binary";
+
+	public static final int FACTOR = 1, RHO = 2, ECM = 3, SIQS = 4, CANCEL = 5, UPDATE = 6;
+	public static final int FOUND = 16, DONE = 17, PROGRESS = 18, REL = 19, INVALID = 20;
+
+	/** No legitimate frame comes anywhere near this. */
+	public static final int MAX_FRAME = 1 << 24;
+
+	// Longest line readLine accepts.
+	private static final int MAX_LINE = 1 << 20;
+
+    /**
+     * Builds one frame, field by field.
+     *     byte[] frame = new Wire.Encoder(Wire.FOUND).varint(id).big(x).frame();
+     */
+	public static class Encoder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		public Encoder(int tag)
+		{
+			bytes.write(tag);
+		}
+
+		/** @requires x >= 0 */
+		public Encoder varint(long x)
+		{
+			if(x < 0) throw new IllegalArgumentException("negative varint " + x);
+			while(x >= 0x80)
+			{
+				bytes.write((int) (x & 0x7f) | 0x80);
+				x >>>= 7;
+			}
+			bytes.write((int) x);
+			return this;
+		}
+
+		public Encoder signed(long x)
+		{
+			long zigzag = (x << 1) ^ (x >> 63);
+			while((zigzag & ~0x7fL) != 0)
+			{
+				bytes.write((int) (zigzag & 0x7f) | 0x80);
+				zigzag >>>= 7;
+			}
+			bytes.write((int) zigzag);
+			return this;
+		}
+
+		public Encoder big(BigInteger x)
+		{
+			byte[] magnitude = x.toByteArray();
+			varint(magnitude.length);
+			bytes.write(magnitude, 0, magnitude.length);
+			return this;
+		}
+
+		/** @return the length prefix followed by everything written so far */
+		public byte[] frame()
+		{
+			byte[] payload = bytes.toByteArray();
+			ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.length + 4);
+			int length = payload.length;
+			while(length >= 0x80)
+			{
+				framed.write((length & 0x7f) | 0x80);
+				length >>>= 7;
+			}
+			framed.write(length);
+			framed.write(payload, 0, payload.length);
+			return framed.toByteArray();
+		}
+	}
+
+    /**
+     * Reads one frame's payload back, field by field, in the order it was written.
+     * Every method throws IllegalArgumentException if the payload is too short or malformed.
+     */
+	public static class Decoder {
+		private final byte[] payload;
+		private int position = 0;
+
+		public Decoder(byte[] payload)
+		{
+			this.payload = payload;
+		}
+
+		public int tag()
+		{
+			return next();
+		}
+
+		public long varint()
+		{
+			long x = 0;
+			for(int shift = 0; shift < 64; shift += 7)
+			{
+				int b = next();
+				x |= (long) (b & 0x7f) << shift;
+				if((b & 0x80) == 0)
+				{
+					if(x < 0) throw new IllegalArgumentException("varint out of range");
+					return x;
+				}
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		public long signed()
+		{
+			long zigzag = 0;
+			for(int shift = 0; shift < 64; shift += 7)
+			{
+				int b = next();
+				zigzag |= (long) (b & 0x7f) << shift;
+				if((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			throw new IllegalArgumentException("varint too long");
+		}
+
+		public BigInteger big()
+		{
+			long length = varint();
+			if(length < 1 || length > payload.length - position) throw new IllegalArgumentException("bad BigInteger length");
+			BigInteger x = new BigInteger(payload, position, (int) length);
+			position += (int) length;
+			return x;
+		}
+
+		/** @return true if there are fields left */
+		public boolean hasMore()
+		{
+			return position < payload.length;
+		}
+
+		private int next()
+		{
+			if(position >= payload.length) throw new IllegalArgumentException("frame too short");
+			return payload[position++] & 0xff;
+		}
+	}
+
+    /**
+     * For readers that collect bytes as they arrive.
+     * @return the size of the whole frame (prefix and payload) at buf[offset..offset+count),
+     *  or -1 if it hasn't all arrived yet
+     * @throws IOException if the length prefix is malformed or over MAX_FRAME
+     */
+	public static int frameSize(byte[] buf, int offset, int count) throws IOException
+	{
+		long length = 0;
+		for(int i = 0; i < count && i < 5; i++)
+		{
+			int b = buf[offset + i] & 0xff;
+			length |= (long) (b & 0x7f) << (7 * i);
+			if((b & 0x80) == 0)
+			{
+				if(length > MAX_FRAME) throw new IOException("frame too long");
+				return count >= i + 1 + length ? (int) (i + 1 + length) : -1;
+			}
+		}
+		if(count >= 5) throw new IOException("bad frame length");
+		return -1;
+	}
+
+    /**
+     * @return the payload of the next frame from in, or null if in ended cleanly before it
+     * @throws IOException if in ends partway through a frame, or the frame is malformed
+     */
+	public static byte[] readFrame(InputStream in) throws IOException
+	{
+		long length = 0;
+		for(int shift = 0; ; shift += 7)
+		{
+			int b = in.read();
+			if(b < 0)
+			{
+				if(shift == 0) return null;
+				throw new EOFException();
+			}
+			length |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) break;
+			if(shift >= 28) throw new IOException("bad frame length");
+		}
+		if(length > MAX_FRAME) throw new IOException("frame too long");
+		byte[] payload = new byte[(int) length];
+		for(int done = 0; done < payload.length; )
+		{
+			int count = in.read(payload, done, payload.length - done);
+			if(count < 0) throw new EOFException();
+			done += count;
+		}
+		return payload;
+	}
+
+    /**
+     * Reads one text line straight from the byte stream, so nothing past it is buffered
+     * away from a readFrame() that may follow.
+     * @return the line without its "\n" or "\r\n", or null if in has ended
+     */
+	public static String readLine(InputStream in) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = in.read()) >= 0 && b != '\n')
+		{
+			if(line.length() >= MAX_LINE) throw new IOException("line too long");
+			line.append((char) b);
+		}
+		if(b < 0 && line.length() == 0) return null;
+		int end = line.length();
+		if(end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+		return line.toString();
+	}
+}
@@ -0,0 +1,63 @@
+package factors.protocol;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WireTest {
+
+	@Test
+	public void roundTripTest() throws IOException {
+		Random r = new Random(13);
+		long[] values = {0, 1, 127, 128, 16383, 16384, Long.MAX_VALUE};
+		BigInteger[] bigs = {BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(-1),
+				BigInteger.valueOf(255), BigInteger.ONE.shiftLeft(64), new BigInteger(300, r)};
+		for(long x : values)
+			for(BigInteger b : bigs)
+			{
+				byte[] frame = new Wire.Encoder(Wire.FOUND).varint(x).signed(-x).signed(x).big(b).frame();
+				assertEquals(frame.length, Wire.frameSize(frame, 0, frame.length));
+				Wire.Decoder d = new Wire.Decoder(Wire.readFrame(new ByteArrayInputStream(frame)));
+				assertEquals(Wire.FOUND, d.tag());
+				assertEquals(x, d.varint());
+				assertEquals(-x, d.signed());
+				assertEquals(x, d.signed());
+				assertEquals(b, d.big());
+				assertFalse(d.hasMore());
+			}
+		byte[] frame = new Wire.Encoder(Wire.REL).signed(Long.MIN_VALUE).frame();
+		Wire.Decoder d = new Wire.Decoder(Wire.readFrame(new ByteArrayInputStream(frame)));
+		d.tag();
+		assertEquals(Long.MIN_VALUE, d.signed());
+	}
+
+	@Test
+	public void partialFrameTest() throws IOException {
+		byte[] frame = new Wire.Encoder(Wire.PROGRESS).varint(7).varint(1 << 20).frame();
+		for(int count = 0; count < frame.length; count++)
+			assertEquals(-1, Wire.frameSize(frame, 0, count));
+		assertNull(Wire.readFrame(new ByteArrayInputStream(new byte[0])));
+	}
+
+	@Test
+	public void lineTest() throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream("binary\r\nfound 6 2\n".getBytes("US-ASCII"));
+		assertEquals(Wire.HELLO, Wire.readLine(in));
+		assertEquals("found 6 2", Wire.readLine(in));
+		assertNull(Wire.readLine(in));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedPayloadTest() {
+		// FOUND id 1, then a number that says it has 5 bytes but has 1
+		Wire.Decoder d = new Wire.Decoder(new byte[] {(byte) Wire.FOUND, 1, 5, 0});
+		d.tag();
+		d.varint();
+		d.big();
+	}
+}
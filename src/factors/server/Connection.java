@@ -0,0 +1,113 @@
+package factors.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import factors.protocol.Wire;
+
+/**
+ * One connected client on a blocking socket. Runs on its own virtual thread,
+ * reading messages until the client hangs up.
+ *
+ * Answers are queued on every flush and a second virtual thread writes them to
+ * the socket, so a job (or a shared search on the CPU pool) never waits for a
+ * client that's slow to read.
+ */
+class Connection extends Session implements Runnable {
+	// Tells the writer there's nothing more to come.
+	private static final byte[] END = new byte[0];
+
+	private final Socket incoming;
+	private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<byte[]>();
+	private volatile boolean isStopped = false;
+
+	Connection(Socket incoming, ExecutorService compute, FactorCache cache, Flights flights, Metrics metrics)
+	{
+		super(compute, cache, flights, metrics);
+		this.incoming = incoming;
+	}
+
+	public void run()
+	{
+		try(Socket socket = incoming;
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream raw = new BufferedOutputStream(socket.getOutputStream()); )
+		{
+			socket.setTcpNoDelay(true);	// answers are flushed as they're ready; don't hold them back
+			Thread.ofVirtual().start(() -> write(raw));
+			setOutput(new OutputStream() {
+				private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+				public void write(int b)
+				{
+					buffer.write(b);
+				}
+
+				public void write(byte[] bytes, int offset, int length)
+				{
+					buffer.write(bytes, offset, length);
+				}
+
+				// Session writes under its output lock, so chunks are queued in the order they were written.
+				public void flush()
+				{
+					if(buffer.size() == 0) return;
+					pending.add(buffer.toByteArray());
+					buffer.reset();
+				}
+			});
+			try
+			{
+				while (!isStopped)
+				{
+					if(binary)
+					{
+						byte[] frame = Wire.readFrame(in);
+						if(frame == null) break; // client closed connection
+						dispatch(frame);
+					}
+					else
+					{
+						String str = Wire.readLine(in);
+						if(str == null) break; // client closed connection
+						dispatch(str);
+					}
+				}
+			}
+			finally
+			{
+				isStopped = true;
+				cancelAll();
+				pending.add(END);
+			}
+		}
+		catch(IOException e){isStopped = true;}
+	}
+
+	// Sends queued answers until the reader is done, flushing whenever it catches up.
+	private void write(OutputStream raw)
+	{
+		try
+		{
+			for(byte[] chunk = pending.take(); chunk != END; chunk = pending.take())
+			{
+				raw.write(chunk);
+				if(pending.isEmpty()) raw.flush();
+			}
+		}
+		catch(InterruptedException e){}
+		catch(IOException e)
+		{
+			// The client's gone. Stop its jobs and wake the reader.
+			cancelAll();
+			try
+			{
+				incoming.close();
+			}
+			catch(IOException f){}
+		}
+	}
+}
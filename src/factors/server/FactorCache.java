@@ -0,0 +1,287 @@
+package factors.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import factors.store.FactorStore;
+import util.BigMath;
+import util.Factorization;
+
+/**
+ * Answers the server has worked out before, shared by every client.
+ *
+ * For each n it remembers which ranges have been searched by "factor n low high", and the
+ * primes found in them. Ranges that meet or overlap are merged, so the chunks a client hands
+ * out add up, and any range inside what has been searched is answered without searching again.
+ * Once [2, sqrt(n)] is covered the complete factorization of n is known, which also answers
+ * "rho n seed"; a rho answer in turn covers all of [2, sqrt(n)].
+ * Holds at most capacity ranges over all n, dropping the least recently used n to make room.
+ * Only searches that ran to the end go in: one cut short by "cancel" or "update" is missing factors.
+ *
+ * With a FactorStore behind it, every n whose factorization becomes known here is also written
+ * to the store, and an n it doesn't hold is looked up there before counting as a miss, so
+ * answers survive a restart. The store is only read one n at a time, as it is asked for.
+ * Neither happens under the cache's lock: a lookup reads the store before taking it, and
+ * writes (with any compaction they set off) go to a thread of their own, so a slow disk
+ * holds up only the request that is waiting on it.
+ */
+class FactorCache {
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	private final int capacity;
+	private final FactorStore store;	// or null
+	private final ExecutorService writer;	// puts to the store, in order; null without one
+	private final LinkedHashMap<BigInteger, Ranges> entries = new LinkedHashMap<BigInteger, Ranges>(16, 0.75f, true);
+	private int size = 0;		// ranges held, over all n
+	private long hits = 0, misses = 0;
+
+    /**
+     * @param capacity the most ranges to hold; 0 turns the cache off
+     */
+	FactorCache(int capacity)
+	{
+		this(capacity, null);
+	}
+
+    /**
+     * @param capacity the most ranges to hold in memory
+     * @param store where complete factorizations are kept between runs, or null
+     */
+	FactorCache(int capacity, FactorStore store)
+	{
+		this.capacity = capacity;
+		this.store = store;
+		this.writer = store == null ? null
+				: Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("store-writer").factory());
+	}
+
+    /**
+     * @return what BigMath.primesOf(n, low, high) returns, or null if it isn't known
+     *  (or the arguments make no sense, for primesOf to say so)
+     */
+	Factorization primesOf(BigInteger n, BigInteger low, BigInteger high)
+	{
+		if(off() || n.compareTo(TWO) < 0 || low.signum() <= 0 || low.compareTo(high) > 0) return null;
+		Ranges loaded = load(n);
+		synchronized(this)
+		{
+			Ranges known = entries.getOrDefault(n, loaded);
+			Factorization primes = known == null ? null : known.primesOf(n, low, high.min(BigMath.sqrt(n)));
+			if(primes == null) misses++;
+			else hits++;
+			return primes;
+		}
+	}
+
+    /**
+     * @return the prime factorization of n, or null if it isn't known
+     */
+	Factorization factors(BigInteger n)
+	{
+		if(off() || n.compareTo(TWO) < 0) return null;
+		Ranges loaded = load(n);
+		Factorization primes;
+		synchronized(this)
+		{
+			Ranges known = entries.getOrDefault(n, loaded);
+			primes = known == null ? null : known.primesOf(n, BigInteger.ONE, BigMath.sqrt(n));
+			if(primes == null)
+			{
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		// Every prime up to sqrt(n) is in; what's left is 1 or one more prime.
+		BigInteger rest = n.divide(primes.product());
+		return rest.equals(BigInteger.ONE) ? primes : primes.times(rest, 1);
+	}
+
+    /**
+     * @requires primes is what BigMath.primesOf(n, low, high) returned, searching the whole range
+     * @param millis how long the search took
+     * @effects remembers that [low, min(high, sqrt(n))] has been searched, and what was in it
+     */
+	synchronized void putRange(BigInteger n, BigInteger low, BigInteger high, Factorization primes, long millis)
+	{
+		if(off() || n.compareTo(TWO) < 0) return;
+		add(n, low, high.min(BigMath.sqrt(n)), primes, millis);
+	}
+
+    /**
+     * @requires primes is a factorization of n into primes
+     * @param millis how long it took to find
+     * @effects remembers it, if it does multiply to n
+     */
+	synchronized void putFactors(BigInteger n, Factorization primes, long millis)
+	{
+		if(off() || !primes.product().equals(n)) return;
+		add(n, TWO, BigMath.sqrt(n), primes, millis);
+	}
+
+    /**
+     * @return "cache.hits=H cache.misses=M cache.entries=E", E being the ranges held
+     */
+	synchronized String stats()
+	{
+		return "cache.hits=" + hits + " cache.misses=" + misses + " cache.entries=" + size;
+	}
+
+    /**
+     * @effects writes out every put still waiting, then closes the store
+     */
+	void close() throws IOException, InterruptedException
+	{
+		if(store == null) return;
+		writer.shutdown();
+		writer.awaitTermination(1, TimeUnit.MINUTES);
+		store.close();
+	}
+
+	private boolean off()
+	{
+		return capacity == 0 && store == null;
+	}
+
+	// Brings n in from the store if it is there and not already in memory. The store is read
+	// without holding the cache, so a lookup that goes to disk holds up no one else.
+	// Returns what was read, or null: the caller answers from it even if it didn't stay in
+	// (with capacity 0 nothing does, and the store is the only cache there is).
+	private Ranges load(BigInteger n)
+	{
+		if(store == null) return null;
+		synchronized(this)
+		{
+			if(entries.containsKey(n)) return null;
+		}
+		Factorization primes;
+		try
+		{
+			primes = store.get(n);
+		}
+		catch(IOException e){System.err.println("store: " + e); return null;}
+		if(primes == null) return null;
+		Ranges known = new Ranges();
+		known.add(TWO, BigMath.sqrt(n), primes);
+		known.stored = true;
+		synchronized(this)
+		{
+			if(entries.containsKey(n)) return known;	// put in while the store was read
+			entries.put(n, known);
+			size++;
+			evict();
+		}
+		return known;
+	}
+
+	private void add(BigInteger n, BigInteger low, BigInteger high, Factorization primes, long millis)
+	{
+		low = low.max(TWO);		// 1 isn't prime, so [1, x] and [2, x] hold the same primes
+		if(low.compareTo(high) > 0) return;
+		Ranges known = entries.get(n);
+		if(known == null)
+		{
+			known = new Ranges();
+			entries.put(n, known);
+		}
+		size += known.add(low, high, primes);
+		known.millis += millis;
+		if(store != null && !known.stored)
+		{
+			Factorization factored = known.primesOf(n, TWO, BigMath.sqrt(n));
+			if(factored != null)
+			{
+				// The whole of [2, sqrt(n)] is in: n is factored
+				known.stored = true;
+				long spent = known.millis;
+				writer.execute(() -> {
+					try
+					{
+						store.put(n, factored, spent);
+					}
+					catch(IOException e){System.err.println("store: " + e);}
+				});
+			}
+		}
+		evict();
+	}
+
+	// Make room, least recently used n first. (The newest n only goes if it alone is too big.)
+	private void evict()
+	{
+		for(Iterator<Ranges> it = entries.values().iterator(); size > capacity && it.hasNext(); )
+		{
+			size -= it.next().ranges.size();
+			it.remove();
+		}
+	}
+
+	// What primesOf(n, low, top) finds, from every prime factor of n in a range holding [low, top]
+	private static Factorization within(BigInteger n, Factorization all, BigInteger low, BigInteger top)
+	{
+		Factorization primes = all.between(low, top);
+		// Just like primesOf: a search from 2 that reaches the square root of what's left
+		// knows that what's left is prime.
+		BigInteger rest = n.divide(primes.product());
+		if(low.equals(TWO) && !rest.equals(BigInteger.ONE) && top.compareTo(BigMath.sqrt(rest)) >= 0)
+			primes = primes.times(rest, 1);
+		return primes;
+	}
+
+	// The searched ranges of one n: disjoint, not touching, by low end
+	private static class Ranges {
+		final TreeMap<BigInteger, Range> ranges = new TreeMap<BigInteger, Range>();
+		long millis = 0;			// spent searching them
+		boolean stored = false;		// n's factorization is in the store
+
+		// top <= sqrt(n). Null unless [max(low, 2), top] has been searched.
+		Factorization primesOf(BigInteger n, BigInteger low, BigInteger top)
+		{
+			Map.Entry<BigInteger, Range> around = ranges.floorEntry(low.max(TWO));
+			if(around == null || around.getValue().high.compareTo(top) < 0) return null;
+			return within(n, around.getValue().primes, low, top);
+		}
+
+		// Adds [low, high], merging it with any range it meets; returns the change in the number of ranges
+		int add(BigInteger low, BigInteger high, Factorization primes)
+		{
+			primes = primes.between(low, high);
+			Map.Entry<BigInteger, Range> first = ranges.floorEntry(low);
+			BigInteger from = first != null && first.getValue().high.compareTo(low.subtract(BigInteger.ONE)) >= 0
+					? first.getKey() : low;
+			ArrayList<BigInteger> merged = new ArrayList<BigInteger>();
+			for(Map.Entry<BigInteger, Range> e : ranges.subMap(from, true, high.add(BigInteger.ONE), true).entrySet())
+			{
+				Range r = e.getValue();
+				// Primes in both were counted in both; keep the ones already here
+				primes = r.primes.times(primes.between(BigInteger.ONE, e.getKey().subtract(BigInteger.ONE)))
+						.times(primes.between(r.high.add(BigInteger.ONE), high.max(r.high)));
+				low = low.min(e.getKey());
+				high = high.max(r.high);
+				merged.add(e.getKey());
+			}
+			for(BigInteger key : merged) ranges.remove(key);
+			ranges.put(low, new Range(high, primes));
+			return 1 - merged.size();
+		}
+	}
+
+	private static class Range {
+		final BigInteger high;
+		final Factorization primes;	// every prime factor of n in the range
+
+		Range(BigInteger high, Factorization primes)
+		{
+			this.high = high;
+			this.primes = primes;
+		}
+	}
+}
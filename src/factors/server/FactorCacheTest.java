@@ -0,0 +1,130 @@
+package factors.server;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import factors.store.FactorStore;
+import util.BigMath;
+import util.Factorization;
+
+public class FactorCacheTest {
+
+	@Test
+	public void subRangeTest() {
+		Random r = new Random(16);
+		FactorCache cache = new FactorCache(100);
+		for(int i = 0; i < 300; i++)
+		{
+			BigInteger n = BigInteger.valueOf(2 + r.nextInt(1 << 20)).multiply(BigInteger.valueOf(1 + r.nextInt(1 << 10)));
+			BigInteger root = BigMath.sqrt(n);
+			cache.putRange(n, BigInteger.ONE, root, BigMath.primesOf(n, BigInteger.ONE, root), 0);
+			for(int j = 0; j < 5; j++)
+			{
+				BigInteger low = BigInteger.valueOf(j == 0 ? 2 : 1 + r.nextInt(root.intValue() + 1));
+				BigInteger high = low.add(BigInteger.valueOf(r.nextInt(2000)));
+				assertEquals(n + " " + low + " " + high, BigMath.primesOf(n, low, high), cache.primesOf(n, low, high));
+			}
+		}
+	}
+
+	@Test
+	public void chunksTest() {
+		Random r = new Random(10);
+		FactorCache cache = new FactorCache(1000);
+		BigInteger n = new BigInteger("24000072168936506814552019656").divide(BigInteger.valueOf(24));	// 1000003*1000000007*1000000000039
+		long root = BigMath.sqrt(n).longValue();
+		// Overlapping chunks, in no particular order, that only cover everything once the last is in
+		ArrayList<long[]> chunks = new ArrayList<long[]>();
+		long size = root / 20;
+		for(long low = 1; low <= root; low += size)
+			chunks.add(new long[] {low, Math.min(root, low + size - 1 + r.nextInt(1000000))});
+		Collections.shuffle(chunks, r);
+		for(int i = 0; i < chunks.size(); i++)
+		{
+			assertNull(cache.factors(n));
+			BigInteger low = BigInteger.valueOf(chunks.get(i)[0]), high = BigInteger.valueOf(chunks.get(i)[1]);
+			Factorization primes = Factorization.ONE;
+			for(BigInteger p : new BigInteger[] {BigInteger.valueOf(1000003), BigInteger.valueOf(1000000007)})
+				if(p.compareTo(low) >= 0 && p.compareTo(high) <= 0) primes = primes.times(p, 1);
+			cache.putRange(n, low, high, primes, 0);
+			assertEquals(primes, cache.primesOf(n, low, high));
+		}
+		assertEquals("1000003*1000000007*1000000000039", cache.factors(n).toString());
+		assertEquals(1, cache.primesOf(n, BigInteger.valueOf(999999), BigInteger.valueOf(1000000000)).size());
+		assertTrue(cache.stats().endsWith("cache.entries=1"));
+	}
+
+	@Test
+	public void lruTest() {
+		FactorCache cache = new FactorCache(2);
+		BigInteger[] n = {BigInteger.valueOf(1001), BigInteger.valueOf(1003), BigInteger.valueOf(1007)};
+		for(int i = 0; i < 2; i++)
+			cache.putRange(n[i], BigInteger.valueOf(3), BigInteger.valueOf(20),
+					BigMath.primesOf(n[i], BigInteger.valueOf(3), BigInteger.valueOf(20)), 0);
+		assertNotNull(cache.primesOf(n[0], BigInteger.valueOf(3), BigInteger.valueOf(20)));	// n[1] is now eldest
+		cache.putRange(n[2], BigInteger.valueOf(3), BigInteger.valueOf(20),
+				BigMath.primesOf(n[2], BigInteger.valueOf(3), BigInteger.valueOf(20)), 0);
+		assertNull(cache.primesOf(n[1], BigInteger.valueOf(3), BigInteger.valueOf(20)));
+		assertNotNull(cache.primesOf(n[0], BigInteger.valueOf(3), BigInteger.valueOf(20)));
+		assertEquals("cache.hits=2 cache.misses=1 cache.entries=2", cache.stats());
+	}
+
+	@Test
+	public void factorsTest() {
+		FactorCache cache = new FactorCache(10);
+		BigInteger n = new BigInteger("1000000016000000063");
+		assertNull(cache.factors(n));
+		cache.putFactors(n, BigMath.factorRho(n, 1), 0);
+		assertEquals(2, cache.factors(n).size());
+		// A range that has to search up to 1000000007 is answered without searching
+		assertEquals(1, cache.primesOf(n, BigInteger.valueOf(999999999), BigInteger.valueOf(1000000008)).size());
+		// A list that doesn't multiply to n isn't taken
+		BigInteger m = BigInteger.valueOf(30);
+		cache.putFactors(m, BigMath.factorRho(BigInteger.valueOf(15), 1), 0);
+		assertNull(cache.factors(m));
+	}
+
+	@Test
+	public void storeTest() throws Exception {
+		Path dir = Files.createTempDirectory("store");
+		BigInteger n = new BigInteger("1000000016000000063");
+		FactorCache cache = new FactorCache(10, new FactorStore(dir, 1 << 30));
+		cache.putFactors(n, BigMath.factorRho(n, 1), 5);
+		cache.close();		// the put is written out before the store closes
+		// A restarted server finds it in the store, with nothing in memory
+		FactorStore store = new FactorStore(dir, 1 << 30);
+		assertEquals(1, store.size());
+		cache = new FactorCache(10, store);
+		assertEquals("1000000007*1000000009", cache.factors(n).toString());
+		assertEquals("cache.hits=1 cache.misses=0 cache.entries=1", cache.stats());
+		assertNull(cache.factors(n.add(BigInteger.TWO)));
+		cache.close();
+	}
+
+	@Test
+	public void storeOnlyTest() throws Exception {
+		// --cache=0 --store=DIR: nothing stays in memory, and the store answers every time
+		Path dir = Files.createTempDirectory("store");
+		BigInteger n = new BigInteger("1000000016000000063");
+		BigInteger root = BigMath.sqrt(n);
+		FactorCache cache = new FactorCache(0, new FactorStore(dir, 1 << 30));
+		cache.putRange(n, BigInteger.ONE, root, BigMath.primesOf(n, BigInteger.ONE, root), 5);
+		cache.close();
+		cache = new FactorCache(0, new FactorStore(dir, 1 << 30));
+		for(int i = 0; i < 2; i++)
+		{
+			assertEquals("1000000007*1000000009", cache.factors(n).toString());
+			assertEquals("1000000007", cache.primesOf(n, BigInteger.ONE, BigInteger.valueOf(1000000007)).toString());
+		}
+		assertEquals("cache.hits=4 cache.misses=0 cache.entries=0", cache.stats());
+		cache.close();
+	}
+}
@@ -0,0 +1,261 @@
+package factors.server;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import immutable.EmptyImList;
+import immutable.ImList;
+import util.BigMath;
+import util.Factorization;
+import util.Trace;
+
+/**
+ * The "factor n low high" searches running on the server, shared by every client.
+ *
+ * A request for the same n, low and high as a search that is already running joins it
+ * instead of starting its own: it is sent the factors found so far, then every later one
+ * as it is found, and "done" with everyone else. Answers already in the FactorCache are
+ * sent without searching at all.
+ * A search stops early only once every request in it has been cancelled. "update n m"
+ * only narrows a search that no other request is in, and no one joins one after that,
+ * since it no longer finds every factor in its range.
+ */
+class Flights {
+	// How often a running search says how far it has got.
+	private static final long PROGRESS_MILLIS = 1000;
+
+	private final ExecutorService compute;
+	private final ForkJoinPool split;	// splits each search over its workers; null to search on one thread
+	private final FactorCache cache;
+	private final Metrics metrics;
+	private final ConcurrentHashMap<List<BigInteger>, Flight> running = new ConcurrentHashMap<List<BigInteger>, Flight>();
+	private final AtomicLong started = new AtomicLong(), joined = new AtomicLong();
+
+	Flights(ExecutorService compute, ForkJoinPool split, FactorCache cache, Metrics metrics)
+	{
+		this.compute = compute;
+		this.split = split;
+		this.cache = cache;
+		this.metrics = metrics;
+	}
+
+    /**
+     * Sends job every prime in [low, high] dividing n, joining a search already running if there is one.
+     * @return false if the range makes no sense, once the search has ended or job has been cancelled
+     */
+	boolean search(Job job, BigInteger n, BigInteger low, BigInteger high) throws Exception
+	{
+		List<BigInteger> key = List.of(n, low, high);
+		while(true)
+		{
+			Factorization known = cache.primesOf(n, low, high);
+			if(known != null)
+			{
+				for(BigInteger x : known) job.found(x);		// one answer per repeat
+				return true;
+			}
+			Flight flight = running.get(key);
+			boolean mine = false;
+			if(flight == null)
+			{
+				Flight created = new Flight(key);
+				flight = running.putIfAbsent(key, created);
+				if(flight == null)
+				{
+					flight = created;
+					mine = true;
+				}
+			}
+			// A search that has just ended (or been narrowed) takes no one; look again.
+			if(!flight.join(job)) continue;
+			// Cancelled or updated before it could find the flight
+			if(job.cancelled.get()) flight.leave(job);
+			else if(job.cofactor.get() != null) flight.update(job, job.cofactor.get());
+			if(mine)
+			{
+				started.incrementAndGet();
+				Thread.ofVirtual().start(flight);
+			}
+			else joined.incrementAndGet();
+			return job.landed.get();
+		}
+	}
+
+    /**
+     * @return "flights.started=S flights.joined=J"
+     */
+	String stats()
+	{
+		return "flights.started=" + started.get() + " flights.joined=" + joined.get();
+	}
+
+	// One search, and the jobs waiting on it
+	class Flight implements Runnable, BigMath.FactorSink {
+		private final List<BigInteger> key;
+		// Guards everything below it. Answers go to the jobs while it's held, so a job that leaves
+		// never gets a factor after its "done"; that only queues them, since every Session hands its
+		// output to a writer of its own (see Connection and NioServer), so a slow client never holds
+		// up the CPU pool. Not a monitor: a virtual thread waiting to enter one pins its carrier.
+		private final ReentrantLock lock = new ReentrantLock();
+		private final AtomicBoolean stop = new AtomicBoolean();
+		private final AtomicReference<BigInteger> cofactor = new AtomicReference<BigInteger>();
+		private final ArrayList<Job> jobs = new ArrayList<Job>();
+		private ImList<BigInteger> found = new EmptyImList<BigInteger>();	// so far, for jobs that join late
+		private boolean closed = false;		// ended, stopping or narrowed: no one else may join
+		private boolean narrowed = false;
+		private long last = System.currentTimeMillis();		// last progress sent
+		private volatile Trace trace = Trace.OFF;		// the last traced job's to join
+
+		Flight(List<BigInteger> key)
+		{
+			this.key = key;
+		}
+
+		public void run()
+		{
+			Factorization result;
+			long start = System.currentTimeMillis();
+			try
+			{
+				Future<Factorization> search = compute.submit(() -> split == null
+						? BigMath.primesOf(key.get(0), key.get(1), key.get(2), stop, cofactor, this)
+						: BigMath.primesOf(key.get(0), key.get(1), key.get(2), stop, cofactor, this, split));
+				result = search.get();
+			}
+			catch(Exception e){result = null;}
+			lock.lock();
+			try
+			{
+				closed = true;
+				// Cut short, it may be missing factors
+				if(result != null && !stop.get() && !narrowed)
+					cache.putRange(key.get(0), key.get(1), key.get(2), result, System.currentTimeMillis() - start);
+				running.remove(key, this);
+				for(Job job : jobs) job.landed.complete(result != null);
+				jobs.clear();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		// Returns false if the search takes no one any more
+		boolean join(Job job)
+		{
+			lock.lock();
+			try
+			{
+				if(closed) return false;
+				for(BigInteger x : found) job.found(x);
+				job.flush();
+				jobs.add(job);
+				job.flight = this;
+				if(job.trace != Trace.OFF) trace = job.trace;
+				return true;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		// job was cancelled: it gets "done" now, and the search stops once nobody is left
+		void leave(Job job)
+		{
+			lock.lock();
+			try
+			{
+				if(!jobs.remove(job)) return;
+				job.landed.complete(true);
+				if(jobs.isEmpty())
+				{
+					closed = true;
+					stop.set(true);
+					running.remove(key, this);
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		// job's client has divided n down to m
+		void update(Job job, BigInteger m)
+		{
+			lock.lock();
+			try
+			{
+				if(jobs.size() != 1 || jobs.get(0) != job) return;	// the others still want every factor
+				closed = true;
+				narrowed = true;
+				running.remove(key, this);
+				cofactor.set(m);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public void found(BigInteger x)
+		{
+			metrics.factors.increment();
+			lock.lock();
+			try
+			{
+				found = found.add(x);
+				for(Job job : jobs)
+				{
+					job.found(x);
+					job.flush();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public Trace trace()
+		{
+			return trace;
+		}
+
+		public void tested(long candidates, long divisions)
+		{
+			metrics.candidates.add(candidates);
+			metrics.divisions.add(divisions);
+		}
+
+		public void progress(long x)
+		{
+			lock.lock();
+			try
+			{
+				long now = System.currentTimeMillis();
+				if(now - last < PROGRESS_MILLIS) return;
+				last = now;
+				for(Job job : jobs)
+				{
+					job.progress(x);
+					job.flush();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+}
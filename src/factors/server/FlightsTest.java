@@ -0,0 +1,99 @@
+package factors.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import util.Trace;
+
+public class FlightsTest {
+
+	@Test
+	public void coalesceTest() throws Exception {
+		ThreadPoolExecutor compute = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+		ExecutorService callers = Executors.newCachedThreadPool();
+		FactorCache cache = new FactorCache(10);
+		Metrics metrics = new Metrics();
+		Flights flights = new Flights(compute, null, cache, metrics);
+		// Hold the pool so that both requests are in before the search starts
+		CountDownLatch gate = new CountDownLatch(1);
+		compute.submit(() -> {gate.await(); return null;});
+		String[] line = {"factor", "1000003007000021", "2", "2000000"};	// 1000003*1000000007
+		ByteArrayOutputStream out1 = new ByteArrayOutputStream(), out2 = new ByteArrayOutputStream();
+		Request r = Request.parse(line);
+		Job job1 = job(line, compute, cache, flights, metrics, out1), job2 = job(line, compute, cache, flights, metrics, out2);
+		Future<Boolean> first = callers.submit(() -> flights.search(job1, r.n, r.low, r.high));
+		Future<Boolean> second = callers.submit(() -> flights.search(job2, r.n, r.low, r.high));
+		waitFor(() -> flights.stats().equals("flights.started=1 flights.joined=1"));
+		gate.countDown();
+		assertTrue(first.get(10, TimeUnit.SECONDS));
+		assertTrue(second.get(10, TimeUnit.SECONDS));
+		assertEquals(2, compute.getTaskCount());	// the gate and one search
+		assertTrue(out1.toString().contains("found 1000003007000021 1000003"));
+		assertTrue(out2.toString().contains("found 1000003007000021 1000003"));
+		compute.shutdown();
+		callers.shutdown();
+	}
+
+	@Test
+	public void lateJoinTest() throws Exception {
+		ThreadPoolExecutor compute = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+		ExecutorService callers = Executors.newCachedThreadPool();
+		FactorCache cache = new FactorCache(10);
+		Metrics metrics = new Metrics();
+		Flights flights = new Flights(compute, null, cache, metrics);
+		// 3*5*(2^89-1): 3 and 5 come at once, then the search runs far longer than the test
+		String n = BigInteger.valueOf(15).multiply(BigInteger.ONE.shiftLeft(89).subtract(BigInteger.ONE)).toString();
+		String[] line = {"factor", n, "2", "1000000000000"};
+		ByteArrayOutputStream out1 = new ByteArrayOutputStream(), out2 = new ByteArrayOutputStream();
+		Request r = Request.parse(line);
+		Job job1 = job(line, compute, cache, flights, metrics, out1), job2 = job(line, compute, cache, flights, metrics, out2);
+		Future<Boolean> first = callers.submit(() -> flights.search(job1, r.n, r.low, r.high));
+		waitFor(() -> out1.toString().contains("found " + n + " 5"));
+		Future<Boolean> second = callers.submit(() -> flights.search(job2, r.n, r.low, r.high));
+		waitFor(() -> flights.stats().equals("flights.started=1 flights.joined=1"));
+		// Everything found before it came in, without waiting for the search
+		assertTrue(out2.toString().contains("found " + n + " 3"));
+		assertTrue(out2.toString().contains("found " + n + " 5"));
+
+		// One leaving is "done" at once, but the other still wants the rest
+		job1.cancel();
+		assertTrue(first.get(10, TimeUnit.SECONDS));
+		Thread.sleep(500);
+		assertFalse(second.isDone());
+		assertEquals(0, compute.getCompletedTaskCount());
+		// The last one leaving stops the search
+		job2.cancel();
+		assertTrue(second.get(10, TimeUnit.SECONDS));
+		waitFor(() -> compute.getCompletedTaskCount() == 1);
+		compute.shutdown();
+		callers.shutdown();
+	}
+
+	// A "factor" job on a session of its own, writing its answers to out
+	private static Job job(String[] line, ExecutorService compute, FactorCache cache, Flights flights,
+			Metrics metrics, ByteArrayOutputStream out) {
+		Session session = new Session(compute, cache, flights, metrics) {};
+		session.setOutput(out);
+		return new Job(Request.parse(line), session, Trace.OFF);
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(!condition.getAsBoolean())
+		{
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
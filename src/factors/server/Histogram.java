@@ -0,0 +1,84 @@
+package factors.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values, in the manner of an HDR histogram: values below 2^PRECISION
+ * get a bucket each, and every power of two above that is split into 2^PRECISION buckets,
+ * so a percentile read back is within about 100/2^PRECISION percent of the true one
+ * (6% here), over the whole range of a long, in under a thousand counters.
+ * Recording is one atomic increment; any number of threads may record at once.
+ */
+class Histogram {
+	private static final int PRECISION = 4;
+	private static final int SUB = 1 << PRECISION;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - PRECISION) * SUB);
+	private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @effects counts value once (negative values as 0)
+     */
+	void record(long value)
+	{
+		value = Math.max(0, value);
+		counts.incrementAndGet(bucket(value));
+		max.accumulateAndGet(value, Math::max);
+	}
+
+    /**
+     * @return how many values have been recorded
+     */
+	long count()
+	{
+		long count = 0;
+		for(int i = 0; i < counts.length(); i++) count += counts.get(i);
+		return count;
+	}
+
+    /**
+     * @requires 0 <= q <= 1
+     * @return the least value v (to within a bucket) such that a fraction q of the values
+     *  recorded are <= v; 0 if nothing has been recorded
+     */
+	long percentile(double q)
+	{
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for(int i = 0; i < snapshot.length; i++) total += snapshot[i] = counts.get(i);
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++)
+		{
+			seen += snapshot[i];
+			if(seen >= rank) return Math.min(highest(i), max.get());
+		}
+		return 0;
+	}
+
+    /**
+     * @return the largest value recorded, or 0
+     */
+	long max()
+	{
+		return max.get();
+	}
+
+	// Values below SUB map to themselves; above, the top PRECISION+1 bits pick the bucket.
+	static int bucket(long value)
+	{
+		if(value < SUB) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION;
+		return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+	}
+
+	// The largest value in bucket i
+	static long highest(int i)
+	{
+		if(i < SUB) return i;
+		int shift = i / SUB - 1;
+		long low = (long) (SUB + i % SUB) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,48 @@
+package factors.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void bucketTest() {
+		// Every bucket's range starts right after the one before it, up to Long.MAX_VALUE
+		long low = 0;
+		for(int i = 0; Histogram.bucket(low) == i; i++)
+		{
+			long high = Histogram.highest(i);
+			assertTrue(high >= low);
+			assertEquals(i, Histogram.bucket(high));
+			if(high == Long.MAX_VALUE) return;
+			low = high + 1;
+		}
+		fail("bucket " + Histogram.bucket(low) + " starts at " + low);
+	}
+
+	@Test
+	public void percentileTest() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.percentile(0.5));
+		Random r = new Random(23);
+		long[] values = new long[10000];
+		for(int i = 0; i < values.length; i++)
+		{
+			values[i] = (long) Math.exp(r.nextDouble() * 30);
+			h.record(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, h.count());
+		assertEquals(values[values.length - 1], h.max());
+		for(double q : new double[] {0.01, 0.5, 0.9, 0.99, 1})
+		{
+			long exact = values[(int) Math.ceil(q * values.length) - 1];
+			long estimate = h.percentile(q);
+			assertTrue(q + ": " + estimate + " vs " + exact, estimate >= exact && estimate <= exact + exact / 16 + 1);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package factors.server;
+
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.BigMath;
+import util.Ecm;
+import util.Factorization;
+import util.Siqs;
+import util.Trace;
+
+/**
+ * One client request. Runs on its own virtual thread; the number crunching itself
+ * is handed to the server's CPU pool through Session.compute().
+ * Evaluates the request and sends every answer for it.
+ */
+class Job implements Runnable {
+	private final Request request;
+	private final Session connection;
+	final String key;		// n as sent (or its binary id), so "cancel n" can find this job
+	final Trace trace;		// Trace.OFF unless the client asked for one
+	final AtomicBoolean cancelled = new AtomicBoolean();
+	final AtomicReference<BigInteger> cofactor = new AtomicReference<BigInteger>();	// from "update n m"
+	volatile Flights.Flight flight;		// the search a "factor" request is in
+	final CompletableFuture<Boolean> landed = new CompletableFuture<Boolean>();	// its outcome, from the search
+
+	Job(Request request, Session connection, Trace trace)
+	{
+		this.request = request;
+		this.connection = connection;
+		this.key = request.key;
+		this.trace = trace;
+	}
+
+	public void run()
+	{
+		long start = System.nanoTime();
+		if(trace.on(Trace.Level.INFO)) trace.event(Trace.Level.INFO, request.verb, request.n, null);
+		try
+		{
+			evaluate();
+		}
+		finally
+		{
+			connection.flush();
+			connection.finished(this);
+			long nanos = System.nanoTime() - start;
+			connection.metrics.finished(request.verb, nanos);
+			if(trace.on(Trace.Level.INFO)) trace.event(Trace.Level.INFO, "done", nanos / 1000 + "us", null);
+		}
+	}
+
+	// "cancel n": stop, or at least stop waiting for a search others are still in
+	void cancel()
+	{
+		cancelled.set(true);
+		Flights.Flight f = flight;
+		if(f != null) f.leave(this);
+	}
+
+	// "update n m"
+	void update(BigInteger m)
+	{
+		cofactor.set(m);
+		Flights.Flight f = flight;
+		if(f != null) f.update(this, m);
+	}
+
+	// Answers from a "factor" search
+	void found(BigInteger x)
+	{
+		connection.found(request, x);
+	}
+
+	void progress(long x)
+	{
+		connection.progress(request, x);
+	}
+
+	void flush()
+	{
+		connection.flush();
+	}
+
+	private void evaluate()
+	{
+		final Request r = request;
+		final BigInteger n = r.n;
+		// Evaluate request from Client: "factor n low high", "rho n seed",
+		// "ecm n B1 B2 curves seed" or "siqs n first count"
+		try
+		{
+			if(r.verb.equals("factor"))
+			{
+				// Where the magic happens, unless an identical search is already running or
+				// this range is already known. Factors go out the moment they're found.
+				if(!connection.flights.search(this, n, r.low, r.high)) throw new IllegalArgumentException();
+			}
+			else if(r.verb.equals("rho"))
+			{
+				final long seed = r.args[0];
+				// Full factorization by Pollard-Brent rho from this seed
+				Factorization factors = connection.cache.factors(n);
+				if(factors == null)
+				{
+					long start = System.currentTimeMillis();
+					factors = connection.compute(() -> BigMath.factorRho(n, seed, cancelled));
+					if(factors != null && !cancelled.get())
+					{
+						connection.cache.putFactors(n, factors, System.currentTimeMillis() - start);
+						connection.metrics.factors.add(factors.count());
+					}
+				}
+
+				// The protocol has one "found" per prime factor, repeated factors repeated
+				if(!cancelled.get())
+					for(BigInteger p : factors) connection.found(r, p);
+			}
+			else if(r.verb.equals("ecm"))
+			{
+				final long b1 = r.args[0];
+				final long b2 = r.args[1];
+				final int curves = (int) r.args[2];
+				final long seed = r.args[3];
+				if(n.compareTo(BigInteger.ONE) <= 0 || b1 < 1 || b2 < b1 || curves < 0 || seed < 0)
+					throw new IllegalArgumentException();
+				// One batch of elliptic curves; stops at the first factor
+				BigInteger d = connection.compute(() -> Ecm.factor(n, b1, b2, seed, curves, cancelled));
+
+				if(d != null)
+				{
+					connection.metrics.factors.increment();
+					connection.found(r, d);
+				}
+			}
+			else if(r.verb.equals("siqs"))
+			{
+				final long first = r.args[0];
+				final int count = (int) r.args[1];
+				if(n.bitLength() < 64 || !n.testBit(0) || first < 0 || count < 0)
+					throw new IllegalArgumentException();
+				// Sieve the polynomials for a's first .. first+count-1, sending relations as they come
+				final Siqs.Sink sink = new Siqs.Sink() {
+					public void relation(BigInteger y, long[] primes)
+					{
+						connection.relation(r, y, primes);
+					}
+				};
+				connection.compute(() -> {
+					Siqs siqs = new Siqs(n);
+					for(long a = first; a < first + count && !cancelled.get(); a++)
+					{
+						siqs.sieve(a, sink, cancelled);
+						connection.flush();
+					}
+					return null;
+				});
+			}
+			connection.done(r);
+		}
+		catch(Exception e){connection.invalid(r);}
+	}
+}
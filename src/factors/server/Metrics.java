@@ -0,0 +1,86 @@
+package factors.server;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server has been doing since it started, shared by every client.
+ *
+ * Counters are LongAdders, so threads counting at once don't contend, and the search loop
+ * in BigMath.primesOf only reports its candidates and divisions once every few thousand
+ * candidates (see BigMath.FactorSink.tested). Each kind of request has a Histogram of how
+ * long it took, from arriving to its last answer.
+ */
+class Metrics {
+	private final long started = System.currentTimeMillis();
+	final LongAdder requests = new LongAdder();
+	final LongAdder invalid = new LongAdder();
+	final LongAdder candidates = new LongAdder();
+	final LongAdder divisions = new LongAdder();
+	final LongAdder factors = new LongAdder();
+	private final ConcurrentHashMap<String, Histogram> latency = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * @effects counts a request for verb that took nanos from start to finish
+     */
+	void finished(String verb, long nanos)
+	{
+		latency.computeIfAbsent(verb, v -> new Histogram()).record(nanos / 1000);
+	}
+
+    /**
+     * @return "uptime=S requests=R invalid=I candidates=C divisions=D factors=F", then for each
+     *  kind of request seen, "VERB.count=N VERB.p50=.. VERB.p90=.. VERB.p99=.. VERB.max=..",
+     *  times in microseconds
+     */
+	String stats()
+	{
+		StringBuilder s = new StringBuilder();
+		s.append("uptime=").append((System.currentTimeMillis() - started) / 1000)
+			.append(" requests=").append(requests.sum())
+			.append(" invalid=").append(invalid.sum())
+			.append(" candidates=").append(candidates.sum())
+			.append(" divisions=").append(divisions.sum())
+			.append(" factors=").append(factors.sum());
+		for(Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(latency).entrySet())
+		{
+			String verb = e.getKey();
+			Histogram h = e.getValue();
+			s.append(' ').append(verb).append(".count=").append(h.count())
+				.append(' ').append(verb).append(".p50=").append(h.percentile(0.5))
+				.append(' ').append(verb).append(".p90=").append(h.percentile(0.9))
+				.append(' ').append(verb).append(".p99=").append(h.percentile(0.99))
+				.append(' ').append(verb).append(".max=").append(h.max());
+		}
+		return s.toString();
+	}
+
+    /**
+     * @effects from now on, every seconds, appends a line to file: the time in milliseconds
+     *  since the epoch, then what the "stats" command would answer
+     */
+	void dump(Path file, long seconds, FactorCache cache, Flights flights)
+	{
+		Thread.ofVirtual().name("stats-dump").start(() -> {
+			while(true)
+			{
+				try
+				{
+					Thread.sleep(seconds * 1000);
+				}
+				catch(InterruptedException e){return;}
+				try(PrintWriter out = new PrintWriter(new FileWriter(file.toFile(), true)))
+				{
+					out.println(System.currentTimeMillis() + " " + cache.stats() + " " + flights.stats() + " " + stats());
+				}
+				catch(IOException e){System.err.println("stats: " + e);}
+			}
+		});
+	}
+}
@@ -0,0 +1,247 @@
+package factors.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import factors.protocol.Wire;
+
+/**
+ * Non-blocking front end: one thread and a Selector serve every connection.
+ *
+ * Lines are assembled from whatever bytes each read brings, and every complete
+ * line (or binary frame) goes to Session.dispatch(), so a client may pipeline as many requests
+ * as it likes without waiting for their "done"s. Answers are queued per
+ * connection and written by the selector thread whenever the socket will take
+ * them, so a slow reader never holds up anyone else.
+ *
+ * Only the selector thread touches the channels and the two direct buffers, which
+ * are reused for every read and write. An idle connection costs a few hundred bytes,
+ * so thousands of them are fine.
+ */
+class NioServer implements Runnable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// A client sending a longer line than this is not speaking our protocol.
+	private static final int MAX_LINE = 64 * 1024;
+
+	private final ServerSocketChannel listener;
+	private final Selector selector;
+	private final ExecutorService compute;
+	private final FactorCache cache;
+	private final Flights flights;
+	private final Metrics metrics;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	// Sessions with new output, waiting for the selector thread to ask for OP_WRITE.
+	private final Queue<Client> wantWrite = new ConcurrentLinkedQueue<Client>();
+
+    /**
+     * @effects binds portNumber, ready for run()
+     * @throws IOException if the port can't be listened on
+     */
+	NioServer(int portNumber, ExecutorService compute, FactorCache cache, Flights flights, Metrics metrics) throws IOException
+	{
+		this.cache = cache;
+		this.flights = flights;
+		this.metrics = metrics;
+		this.compute = compute;
+		this.selector = Selector.open();
+		this.listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(portNumber));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				selector.select();
+				for(Client client = wantWrite.poll(); client != null; client = wantWrite.poll())
+					if(client.key.isValid()) client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					try
+					{
+						if(key.isAcceptable()) accept();
+						else
+						{
+							Client client = (Client) key.attachment();
+							if(key.isReadable()) read(client);
+							if(key.isValid() && key.isWritable()) write(client);
+						}
+					}
+					catch(IOException e)
+					{
+						if(key.attachment() != null) close((Client) key.attachment());
+					}
+				}
+			}
+		}
+		catch(IOException e){System.out.println(e);}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = listener.accept();
+		if(channel == null) return;
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Client(channel, key));
+	}
+
+	// Feed whatever arrived into the client's line (or frame), dispatching each one as it completes.
+	private void read(Client client) throws IOException
+	{
+		readBuffer.clear();
+		int count = client.channel.read(readBuffer);
+		if(count < 0)
+		{
+			close(client); // client closed connection
+			return;
+		}
+		readBuffer.flip();
+		while(readBuffer.hasRemaining() && !client.binary)
+		{
+			char c = (char) (readBuffer.get() & 0xff);
+			if(c == '\n')
+			{
+				int end = client.line.length();
+				if(end > 0 && client.line.charAt(end - 1) == '\r') client.line.setLength(end - 1);
+				client.dispatch(client.line.toString());
+				client.line.setLength(0);
+			}
+			else if(client.line.length() < MAX_LINE) client.line.append(c);
+			else throw new IOException("line too long");
+		}
+		if(!readBuffer.hasRemaining()) return;
+
+		// Binary: collect bytes until whole frames are there
+		int more = readBuffer.remaining();
+		if(client.frameCount + more > client.frames.length)
+			client.frames = Arrays.copyOf(client.frames, Math.max(client.frames.length * 2, client.frameCount + more));
+		readBuffer.get(client.frames, client.frameCount, more);
+		client.frameCount += more;
+		int start = 0;
+		int size;
+		while((size = Wire.frameSize(client.frames, start, client.frameCount - start)) > 0)
+		{
+			int prefix = 1;		// bytes in the length varint
+			while((client.frames[start + prefix - 1] & 0x80) != 0) prefix++;
+			client.dispatch(Arrays.copyOfRange(client.frames, start + prefix, start + size));
+			start += size;
+		}
+		client.frameCount -= start;
+		System.arraycopy(client.frames, start, client.frames, 0, client.frameCount);
+	}
+
+	// Write as much queued output as the socket takes; stop asking for OP_WRITE once it's all gone.
+	private void write(Client client) throws IOException
+	{
+		while(true)
+		{
+			writeBuffer.clear();
+			synchronized(client.pending)
+			{
+				while(!client.pending.isEmpty() && writeBuffer.hasRemaining())
+				{
+					byte[] chunk = client.pending.poll();
+					int fits = Math.min(chunk.length, writeBuffer.remaining());
+					writeBuffer.put(chunk, 0, fits);
+					if(fits < chunk.length)
+					{
+						byte[] rest = new byte[chunk.length - fits];
+						System.arraycopy(chunk, fits, rest, 0, rest.length);
+						client.pending.addFirst(rest);
+					}
+				}
+			}
+			writeBuffer.flip();
+			if(!writeBuffer.hasRemaining()) break;
+			client.channel.write(writeBuffer);
+			if(writeBuffer.hasRemaining())
+			{
+				// Socket is full. Put back what didn't go and wait for the next OP_WRITE.
+				byte[] rest = new byte[writeBuffer.remaining()];
+				writeBuffer.get(rest);
+				synchronized(client.pending) {client.pending.addFirst(rest);}
+				return;
+			}
+		}
+		synchronized(client.pending)
+		{
+			if(client.pending.isEmpty()) client.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void close(Client client)
+	{
+		client.cancelAll();
+		client.key.cancel();
+		try
+		{
+			client.channel.close();
+		}
+		catch(IOException e){}
+	}
+
+    /**
+     * One connection. Its jobs write to an output stream that queues the bytes
+     * for the selector thread on every flush.
+     */
+	private class Client extends Session {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final StringBuilder line = new StringBuilder();
+		byte[] frames = new byte[0];	// binary bytes not yet dispatched
+		int frameCount = 0;
+		final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+
+		Client(SocketChannel channel, SelectionKey key)
+		{
+			super(compute, NioServer.this.cache, NioServer.this.flights, NioServer.this.metrics);
+			this.channel = channel;
+			this.key = key;
+			setOutput(new OutputStream() {
+				private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+				public synchronized void write(int b)
+				{
+					buffer.write(b);
+				}
+
+				public synchronized void write(byte[] bytes, int offset, int length)
+				{
+					buffer.write(bytes, offset, length);
+				}
+
+				public synchronized void flush()
+				{
+					if(buffer.size() == 0) return;
+					// Queued under the lock, so chunks go out in the order they were written.
+					synchronized(pending) {pending.add(buffer.toByteArray());}
+					buffer.reset();
+					wantWrite.add(Client.this);
+					selector.wakeup();
+				}
+			});
+		}
+	}
+}
@@ -1,109 +1,184 @@
 package factors.server;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.net.*;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
-import immutable.EmptyImList;
-import immutable.ImList;
-import util.BigMath;
+import factors.store.FactorStore;
+import util.PrimeTable;
+import util.Trace;
 
 /**
  *  PrimeFactorsServer performs the "server-side" algorithm 
  *  for counting prime factors.
  *
- *  The PrimeFactorsServer takes a single Program Argument 
+ *  The PrimeFactorsServer takes a Program Argument 
  *  indicating which port the Server will be listening on.
  *      ex. arg of "4444" will make the Server listen on 4444.
+ *  An optional "--threads=N" sets how many requests may crunch numbers
+ *  at once (defaults to the number of processors), and "--nio" serves
+ *  every connection from one Selector thread instead of a thread each.
+ *  "--parallel" splits each "factor" search over a fork/join pool of as many
+ *  threads, so one server can keep every processor busy with a single range.
+ *  "--cache=N" keeps up to N answers (default 10000, 0 for none), so
+ *  repeated requests, and ranges of numbers already factored, are answered
+ *  without searching again.
+ *  "--store=DIR" also keeps every number whose factorization the server
+ *  learns in a FactorStore in DIR, so the answers outlive a restart.
+ *  "--primes=FILE" reads primes from a table built by util.PrimeTable
+ *  instead of sieving them; every server on the machine can share one.
+ *  "--stats-file=FILE" appends the "stats" line to FILE, after the time in
+ *  milliseconds, every "--stats-every=SECONDS" (default 60).
+ *  "--trace-file=FILE" writes what traced requests do (see "trace" below)
+ *  to FILE instead of standard output.
  *  For multiple servers, PrimeFactorsServer needs to be ran multiple times
  *  with different port numbers.
  *      
- *  The server only needs to handle one client at a time.  If the 
- *  connected client disconnects, it goes back to listening for
- *  future clients to connect to.
+ *  Any number of clients may be connected at once, each served by its
+ *  own virtual thread (or all by one Selector with "--nio"), and each
+ *  may pipeline many requests without waiting for their answers.
+ *  All of them share the one pool of compute threads. A client that
+ *  disconnects only stops its own requests.
  *  
  *  The client messages that come in will indicate the value that is being
  *  factored and the range of values this server will be processing over.  
  *  This server will take this in and message back all factors for our value.
+ *  
+ *  Messages understood:
+ *      factor n low high   ->  "found n x" for each prime x in [low, high] dividing n,
+ *                              sent as soon as x is found, then "done n low high".
+ *                              While it runs, "progress n y" about once a second:
+ *                              every candidate below y has been tried.
+ *      rho n seed          ->  "found n x" for every prime factor x of n, found with
+ *                              Pollard-Brent rho starting from seed, then "done n seed"
+ *      ecm n B1 B2 curves seed
+ *                          ->  runs elliptic curves seed .. seed+curves-1 with stage bounds
+ *                              B1 and B2. "found n d" for the first factor d found (d need
+ *                              not be prime), then "done n B1 B2 curves seed"
+ *      siqs n first count  ->  sieves the quadratic sieve polynomials for a's numbered
+ *                              first .. first+count-1. "rel n y p1 p2 .. pk" for each
+ *                              relation y^2 - n = p1*p2*..*pk, then "done n first count"
+ *      cancel n            ->  no reply of its own. Queued and running requests for n stop
+ *                              early and answer "done". rho sends no more "found"s; factor
+ *                              sends the ones it had found so far.
+ *      update n m          ->  no reply of its own. The client has divided n down to m, so
+ *                              running "factor n" requests carry on with m and stop at sqrt(m).
+ *      stats               ->  "stats cache.hits=H cache.misses=M cache.entries=E
+ *                              flights.started=S flights.joined=J uptime=.. requests=..
+ *                              invalid=.. candidates=.. divisions=.. factors=.." on one line
+ *                              (text only), then for each verb served so far
+ *                              "VERB.count=N VERB.p50=.. VERB.p90=.. VERB.p99=.. VERB.max=..",
+ *                              request times in microseconds. Candidates and divisions are
+ *                              counted by the factor searches as they go.
+ *      trace REQUEST       ->  REQUEST (factor, rho, ecm or siqs), answered as usual, with
+ *      trace=N REQUEST         its start, end and every factor its search finds written
+ *                              out as util.Trace events (every N'th factor with "trace=N").
+ *                              A search shared with other requests is traced for all of them.
+ *                              Text only.
+ *  Anything else gets "invalid".
+ *
+ *  A client that sends the line "binary" gets "binary" back, and from then on
+ *  the same messages travel both ways as frames (see factors.protocol.Wire),
+ *  with each request named by an id of the client's choosing instead of n.
  */
 public class PrimeFactorsServer {
-            
-	private static boolean isStopped = false;
+
+	// Answers kept for repeated requests, unless "--cache=N" says otherwise
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+	// Bytes a "--store" log may grow to before the cheapest answers are dropped
+	static final long STORE_LIMIT = 256L << 20;
+	// Seconds between lines of a "--stats-file"
+	private static final long DEFAULT_STATS_EVERY = 60;
+
     /**
-     * @param args String array containing Program arguments.  It should only 
-     *      contain one String indicating the port it should connect to.
-     *      Defaults to port 4444 if no Program argument is present.
+     * @param args String array containing Program arguments: the port it should
+     *      listen on, and optionally "--threads=N", "--nio", "--parallel", "--cache=N",
+     *      "--store=DIR", "--primes=FILE", "--stats-file=FILE", "--stats-every=SECONDS"
+     *      and "--trace-file=FILE".
+     *      Defaults to port 4444 if no port is present.
      */
     public static void main(String[] args) throws IOException {
-		int portNumber = 0;
+		int portNumber = 4444;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean nio = false;
+		boolean parallel = false;
+		int cacheSize = DEFAULT_CACHE_SIZE;
+		String storeDir = null;
+		String primes = null;
+		String statsFile = null;
+		long statsEvery = DEFAULT_STATS_EVERY;
+		String traceFile = null;
+		for(String arg : args)
+		{
+			if(arg.startsWith("--threads=")) threads = Integer.parseInt(arg.substring("--threads=".length()));
+			else if(arg.startsWith("--cache=")) cacheSize = Integer.parseInt(arg.substring("--cache=".length()));
+			else if(arg.startsWith("--store=")) storeDir = arg.substring("--store=".length());
+			else if(arg.startsWith("--primes=")) primes = arg.substring("--primes=".length());
+			else if(arg.startsWith("--stats-file=")) statsFile = arg.substring("--stats-file=".length());
+			else if(arg.startsWith("--stats-every=")) statsEvery = Long.parseLong(arg.substring("--stats-every=".length()));
+			else if(arg.startsWith("--trace-file=")) traceFile = arg.substring("--trace-file=".length());
+			else if(arg.equals("--nio")) nio = true;
+			else if(arg.equals("--parallel")) parallel = true;
+			else portNumber = Integer.parseInt(arg);
+		}
+		FactorStore store = null;
 		try
 		{
-			portNumber = Integer.parseInt(args[0]);
+			if(storeDir != null) store = new FactorStore(Path.of(storeDir), STORE_LIMIT);
+			if(primes != null) PrimeTable.install(PrimeTable.open(Path.of(primes)));
+			if(traceFile != null) Trace.writeTo(new PrintStream(new FileOutputStream(traceFile, true)));
+		}
+		catch(IOException e){System.err.println(e + " Failed to open the store, prime table or trace file."); return;}
+		// Shared by every connection, so the number of clients doesn't change the load on the CPU.
+		ExecutorService compute = Executors.newFixedThreadPool(threads);
+		FactorCache cache = new FactorCache(cacheSize, store);
+		if(store != null)
+		{
+			// Finish the writes still queued for the store before closing it
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {cache.close();} catch(IOException | InterruptedException e){}
+			}));
+		}
+		Metrics metrics = new Metrics();
+		ForkJoinPool split = parallel ? new ForkJoinPool(threads) : null;
+		Flights flights = new Flights(compute, split, cache, metrics);	// identical searches at the same time run once
+		if(statsFile != null) metrics.dump(Path.of(statsFile), statsEvery, cache, flights);
+		if(nio)
+		{
+			NioServer server;
+			try
+			{
+				server = new NioServer(portNumber, compute, cache, flights, metrics);
+			}
+			catch(Exception e){System.err.println( e + " Failed to listen on the assigned port. Oopsy!"); compute.shutdown(); return;}
+			server.run();
+			compute.shutdownNow();
+			return;
 		}
-		catch(ArrayIndexOutOfBoundsException e){portNumber = 4444;}
-		// I use a separate try block for the ServerSocket.
-		// This way when the connection with the client closes,
-		// the server socket will still be open.
+
 		ServerSocket s = null;
 		try
 		{
 			s = new ServerSocket(portNumber);
 		}
-		catch(Exception e){System.err.println( e + " Failed to listen on the assigned port. Oopsy!"); isStopped = true;}
+		catch(Exception e){System.err.println( e + " Failed to listen on the assigned port. Oopsy!"); compute.shutdown(); return;}
 
-		while( !isStopped){
-		// Open a new connection with the client
-		try(Socket incoming = s.accept();
-			BufferedReader in = new BufferedReader( new InputStreamReader(incoming.getInputStream()));
-			PrintWriter out = new PrintWriter( new OutputStreamWriter( incoming.getOutputStream())); )
+		try
 		{
-			isStopped = false;
-			
-			while (!isStopped)
+			while(true)
 			{
-				String str = in.readLine();
-				ImList<BigInteger> factors = new EmptyImList<BigInteger>();
-				if( str == null)
-				{
-					isStopped = true;
-					break; // client closed connection
-				}
-				else
-				{
-					// Evaluate message from Client. Should be in format "factor n low high"
-					String[] input = str.split(" ");
-					if(input[0].matches("factor") && input.length == 4)
-					{
-						try
-						{
-							BigInteger n = new BigInteger(input[1]);
-							BigInteger low = new BigInteger(input[2]);
-							BigInteger high = new BigInteger(input[3]);
-							// Where the magic happens
-							factors = BigMath.primesOf(n, low, high);
-
-							Iterator<BigInteger> it = factors.iterator();
-							while(it.hasNext()) {out.println("found " + n + " " + it.next());}
-							out.println("done " + n + " " + low + " " + high);
-							out.flush();
-							continue;
-						}
-						catch(Exception e){out.println("invalid!"); out.flush();}
-					}
-					else
-					{
-						out.println("invalid"); out.flush();
-					}
-				}
+				// Open a new connection with the client
+				Socket incoming = s.accept();
+				Thread.ofVirtual().start(new Connection(incoming, compute, cache, flights, metrics));
 			}
-			incoming.close();
-		}catch(SocketException e){isStopped = true;}
-		catch(Exception e){System.out.println(e); isStopped = true;}
-	}// End while( !isStopped )
-		
-	// isStopped is true; close the ServerSocket
-	s.close();
-	
+		}
+		finally
+		{
+			compute.shutdownNow();
+			s.close();
+		}
     }
 }
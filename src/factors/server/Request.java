@@ -0,0 +1,97 @@
+package factors.server;
+
+import java.math.BigInteger;
+
+import factors.protocol.Wire;
+
+/**
+ * One request from a client, "factor", "rho", "ecm" or "siqs", decoded from either wire format.
+ */
+class Request {
+	final String verb;
+	final String key;		// what "cancel" and "update" name it by: n as sent in text, the id in binary
+	final int id;			// binary request id; -1 for text
+	final BigInteger n;
+	final BigInteger low, high;	// factor only
+	final long[] args;		// factor: low high; rho: seed; ecm: B1 B2 curves seed; siqs: first count
+	private final String[] text;	// the text request's words, echoed back in "done"
+
+	private Request(String verb, String key, int id, BigInteger n, BigInteger low, BigInteger high, long[] args, String[] text)
+	{
+		this.verb = verb;
+		this.key = key;
+		this.id = id;
+		this.n = n;
+		this.low = low;
+		this.high = high;
+		this.args = args;
+		this.text = text;
+	}
+
+    /**
+     * @return the request in a text line's words, or null if it isn't one
+     * @throws NumberFormatException if it is one, but its numbers don't parse
+     */
+	static Request parse(String[] input)
+	{
+		String verb = input[0];
+		if(verb.equals("factor") && input.length == 4)
+			return new Request(verb, input[1], -1, new BigInteger(input[1]),
+					new BigInteger(input[2]), new BigInteger(input[3]), null, input);
+		if(verb.equals("rho") && input.length == 3)
+			return new Request(verb, input[1], -1, new BigInteger(input[1]), null, null,
+					new long[] {Long.parseLong(input[2])}, input);
+		if(verb.equals("ecm") && input.length == 6)
+			return new Request(verb, input[1], -1, new BigInteger(input[1]), null, null,
+					new long[] {Long.parseLong(input[2]), Long.parseLong(input[3]),
+								Integer.parseInt(input[4]), Long.parseLong(input[5])}, input);
+		if(verb.equals("siqs") && input.length == 4)
+			return new Request(verb, input[1], -1, new BigInteger(input[1]), null, null,
+					new long[] {Long.parseLong(input[2]), Integer.parseInt(input[3])}, input);
+		return null;
+	}
+
+    /**
+     * @requires frame is positioned just after its tag
+     * @return the request in a binary frame, or null if tag isn't a request
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+	static Request decode(int tag, Wire.Decoder frame)
+	{
+		String verb;
+		int count;
+		switch(tag)
+		{
+			case Wire.FACTOR: verb = "factor"; count = 2; break;
+			case Wire.RHO:    verb = "rho";    count = 1; break;
+			case Wire.ECM:    verb = "ecm";    count = 4; break;
+			case Wire.SIQS:   verb = "siqs";   count = 2; break;
+			default: return null;
+		}
+		long id = frame.varint();
+		if(id > Integer.MAX_VALUE) throw new IllegalArgumentException("request id out of range");
+		BigInteger n = frame.big();
+		long[] args = new long[count];
+		for(int i = 0; i < count; i++) args[i] = frame.varint();
+		if(tag == Wire.ECM && args[2] > Integer.MAX_VALUE) throw new IllegalArgumentException("too many curves");
+		if(tag == Wire.SIQS && args[1] > Integer.MAX_VALUE) throw new IllegalArgumentException("too many polynomials");
+		BigInteger low = tag == Wire.FACTOR ? BigInteger.valueOf(args[0]) : null;
+		BigInteger high = tag == Wire.FACTOR ? BigInteger.valueOf(args[1]) : null;
+		return new Request(verb, Long.toString(id), (int) id, n, low, high, args, null);
+	}
+
+	boolean isBinary()
+	{
+		return id >= 0;
+	}
+
+    /**
+     * @return the text "done" line for this request: "done", then the request's own words after the verb
+     */
+	String doneLine()
+	{
+		StringBuilder line = new StringBuilder("done");
+		for(int i = 1; i < text.length; i++) line.append(' ').append(text[i]);
+		return line.toString();
+	}
+}
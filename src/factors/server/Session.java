@@ -0,0 +1,325 @@
+package factors.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import factors.protocol.Wire;
+import util.Trace;
+
+/**
+ * What every kind of client connection has in common: the requests it has in
+ * flight, where their answers go, and the shared CPU pool they run on.
+ *
+ * Every message becomes a Job on a virtual thread of its own, so a client can
+ * pipeline many requests, and "cancel n" and "update n m" are handled while they run.
+ * Answers already in the server's FactorCache go straight back, and requests for a
+ * search already running join it (see Flights).
+ * Subclasses read the lines (Connection with a blocking socket, NioServer with a
+ * Selector) and hand each one to dispatch(). Once the client has asked for the
+ * binary format (see Wire), they read frames instead and hand those over.
+ * Jobs answer through found(), done() and the rest, which write whichever format
+ * the connection speaks. The output a subclass sets must only queue what it's given
+ * on flush, never wait for the client: answers are written from shared searches too.
+ */
+abstract class Session {
+	private final ExecutorService compute;
+	final FactorCache cache;
+	final Flights flights;
+	final Metrics metrics;
+	private final Collection<Job> jobs = new ConcurrentLinkedQueue<Job>();
+	// Held for every write and flush, so one answer's bytes stay together. Not the
+	// PrintWriter's monitor: a job's virtual thread blocked entering it pins its carrier,
+	// and the thread that has the stream may be a virtual thread waiting for that carrier.
+	private final ReentrantLock output = new ReentrantLock();
+	private OutputStream raw;
+	private PrintWriter out;
+	volatile boolean binary = false;	// frames from here on, both ways
+
+	Session(ExecutorService compute, FactorCache cache, Flights flights, Metrics metrics)
+	{
+		this.compute = compute;
+		this.cache = cache;
+		this.flights = flights;
+		this.metrics = metrics;
+	}
+
+    /**
+     * @effects answers go to raw from now on
+     */
+	void setOutput(OutputStream raw)
+	{
+		this.raw = raw;
+		this.out = new PrintWriter(new OutputStreamWriter(raw, StandardCharsets.US_ASCII));
+	}
+
+    /**
+     * @requires the output has been set
+     * @effects starts the request in line, or cancels or updates the ones it names
+     */
+	void dispatch(String line)
+	{
+		if(line.equals(Wire.HELLO))
+		{
+			if(!jobs.isEmpty())
+			{
+				// Their answers are on their way as text, and mustn't land among frames
+				line("invalid!");
+				flush();
+				return;
+			}
+			// Agree to frames. Nothing more comes as text after this, either way.
+			line(Wire.HELLO);
+			flush();
+			binary = true;
+			return;
+		}
+		if(line.equals("stats"))
+		{
+			line("stats " + cache.stats() + " " + flights.stats() + " " + metrics.stats());
+			flush();
+			return;
+		}
+		String[] input = line.split(" ");
+		if(input[0].matches("cancel") && input.length == 2)
+		{
+			cancel(input[1]);
+			return;
+		}
+		if(input[0].matches("update") && input.length == 3)
+		{
+			try
+			{
+				update(input[1], new BigInteger(input[2]));
+			}
+			catch(NumberFormatException e){}
+			return;
+		}
+		// "trace REQUEST" or "trace=N REQUEST": trace this one request, every factor or every N'th
+		int sample = 0;
+		Request request;
+		try
+		{
+			if(input[0].matches("trace(=[1-9][0-9]*)?") && input.length > 1)
+			{
+				sample = input[0].equals("trace") ? 1 : Integer.parseInt(input[0].substring("trace=".length()));
+				input = Arrays.copyOfRange(input, 1, input.length);
+			}
+			request = Request.parse(input);
+		}
+		catch(NumberFormatException e)
+		{
+			metrics.invalid.increment();
+			line("invalid!");
+			flush();
+			return;
+		}
+		if(request == null)
+		{
+			metrics.invalid.increment();
+			line("invalid");
+			flush();
+			return;
+		}
+		start(request, sample > 0 ? new Trace(request.key, Trace.Level.DEBUG, sample) : Trace.OFF);
+	}
+
+    /**
+     * @requires the output has been set and binary is true
+     * @effects the same as dispatch(String), for one frame's payload
+     */
+	void dispatch(byte[] payload)
+	{
+		Wire.Decoder frame = new Wire.Decoder(payload);
+		try
+		{
+			int tag = frame.tag();
+			if(tag == Wire.CANCEL)
+			{
+				cancel(Long.toString(frame.varint()));
+				return;
+			}
+			if(tag == Wire.UPDATE)
+			{
+				update(Long.toString(frame.varint()), frame.big());
+				return;
+			}
+			Request request = Request.decode(tag, frame);
+			if(request == null) throw new IllegalArgumentException("unknown tag " + tag);
+			start(request, Trace.OFF);
+		}
+		catch(IllegalArgumentException e)
+		{
+			metrics.invalid.increment();
+			// Name the request if at all possible, for the client's sake
+			long id = 0;
+			try
+			{
+				Wire.Decoder again = new Wire.Decoder(payload);
+				again.tag();
+				id = again.varint();
+			}
+			catch(IllegalArgumentException e2){}
+			frame(new Wire.Encoder(Wire.INVALID).varint(id).frame());
+			flush();
+		}
+	}
+
+	private void start(Request request, Trace trace)
+	{
+		metrics.requests.increment();
+		Job job = new Job(request, this, trace);
+		jobs.add(job);
+		Thread.ofVirtual().start(job);
+	}
+
+	// Stop every queued or running request for this n. They still answer "done".
+	private void cancel(String key)
+	{
+		for(Job job : jobs)
+			if(key.equals(job.key)) job.cancel();
+	}
+
+	// The client has divided n down to m; range searches for n only need to go to sqrt(m).
+	private void update(String key, BigInteger m)
+	{
+		if(m.signum() <= 0) return;
+		for(Job job : jobs)
+			if(key.equals(job.key)) job.update(m);
+	}
+
+    /**
+     * @effects cancels every request in flight. Nobody is left to read the answers,
+     *  so the CPU pool can get on with other clients.
+     */
+	void cancelAll()
+	{
+		for(Job job : jobs) job.cancel();
+	}
+
+    /**
+     * Runs task on the shared CPU pool and waits for it.
+     * @returns whatever task returns
+     * @throws Exception whatever task throws
+     */
+	<T> T compute(Callable<T> task) throws Exception
+	{
+		Future<T> result = compute.submit(task);
+		try
+		{
+			return result.get();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof Exception) throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	// Called by a Job once its last answer is written.
+	void finished(Job job)
+	{
+		jobs.remove(job);
+	}
+
+	// Answers. Each is one line or one frame, so answers to different requests never mix.
+
+	void found(Request r, BigInteger x)
+	{
+		if(r.isBinary()) frame(new Wire.Encoder(Wire.FOUND).varint(r.id).big(x).frame());
+		else line("found " + r.key + " " + x);
+	}
+
+	void progress(Request r, long y)
+	{
+		if(r.isBinary()) frame(new Wire.Encoder(Wire.PROGRESS).varint(r.id).varint(y).frame());
+		else line("progress " + r.key + " " + y);
+	}
+
+	void relation(Request r, BigInteger y, long[] primes)
+	{
+		if(r.isBinary())
+		{
+			Wire.Encoder frame = new Wire.Encoder(Wire.REL).varint(r.id).big(y).varint(primes.length);
+			for(int i = 0; i < primes.length; i++) frame.signed(primes[i]);
+			frame(frame.frame());
+		}
+		else
+		{
+			StringBuilder line = new StringBuilder("rel ").append(r.key).append(' ').append(y);
+			for(int i = 0; i < primes.length; i++) line.append(' ').append(primes[i]);
+			line(line.toString());
+		}
+	}
+
+	void done(Request r)
+	{
+		if(r.isBinary())
+		{
+			Wire.Encoder frame = new Wire.Encoder(Wire.DONE).varint(r.id).varint(r.args.length);
+			for(int i = 0; i < r.args.length; i++) frame.varint(r.args[i]);
+			frame(frame.frame());
+		}
+		else line(r.doneLine());
+	}
+
+	// The request's numbers made no sense.
+	void invalid(Request r)
+	{
+		metrics.invalid.increment();
+		if(r.isBinary()) frame(new Wire.Encoder(Wire.INVALID).varint(r.id).frame());
+		else line("invalid!");
+	}
+
+	void flush()
+	{
+		output.lock();
+		try
+		{
+			out.flush();
+		}
+		finally
+		{
+			output.unlock();
+		}
+	}
+
+	private void line(String line)
+	{
+		output.lock();
+		try
+		{
+			out.println(line);
+		}
+		finally
+		{
+			output.unlock();
+		}
+	}
+
+	private void frame(byte[] frame)
+	{
+		output.lock();
+		try
+		{
+			raw.write(frame);
+		}
+		catch(IOException e){cancelAll();}
+		finally
+		{
+			output.unlock();
+		}
+	}
+}
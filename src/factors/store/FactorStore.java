@@ -0,0 +1,470 @@
+package factors.store;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import factors.protocol.Wire;
+import util.Factorization;
+
+/**
+ * Complete factorizations kept on disk, so they outlive the process that worked them out.
+ *
+ * A store is a directory holding three files:
+ *     factors.log   append-only records, one per n: a Wire frame holding n, how many
+ *                   milliseconds it took to factor, and each distinct prime factor with
+ *                   its exponent; then a CRC32 of the frame's payload
+ *     factors.idx   an open-addressing hash table from n to the offset of its record,
+ *                   memory-mapped, so opening a store reads nothing but the index header
+ *     lock          empty; locked by whichever process has the store open, from open to
+ *                   close. Not the log, which compaction replaces.
+ * get(n) is one probe of the mapped index and one positioned read of the log.
+ *
+ * Records are only ever appended. If the process dies partway through an append, the torn
+ * record fails its CRC on the next open and is cut off. An index that has fallen behind the
+ * log, or is missing, is brought up to date from the log.
+ * Once the log grows past its limit, compact() rewrites it with the most expensive
+ * factorizations (by time taken, then by size of n) that fit in half the limit.
+ * One process at a time may have a store open.
+ */
+public class FactorStore implements Closeable {
+	private static final int LOG_MAGIC = 0x5046534c;	// "PFSL"
+	private static final int IDX_MAGIC = 0x50465349;	// "PFSI"
+	private static final int VERSION = 2;				// 1 wrote repeated factors out one by one
+	private static final int LOG_HEADER = 8;			// magic, version
+	private static final int IDX_HEADER = 32;			// magic, version, capacity, count, log length, spare
+	private static final int SLOT = 16;					// hash, offset (0 = empty)
+	private static final int MIN_CAPACITY = 1024;
+
+	private final Path dir;
+	private final long limit;
+	// Guards everything below it. Not a monitor: get() is called from virtual threads, which
+	// would pin their carriers waiting out a put() that has set off a compaction.
+	private final ReentrantLock guard = new ReentrantLock();
+	private final FileChannel lockFile;
+	private final FileLock lock;
+	private FileChannel log;
+	private FileChannel idxFile;
+	private MappedByteBuffer idx;
+	private int capacity;		// slots in the index, a power of 2
+	private int count;			// records
+	private long logLength;		// bytes of the log holding good records
+
+    /**
+     * Opens the store in dir, creating it if need be.
+     * @param limit the most bytes the log may hold before it is compacted
+     * @throws IOException if the store can't be read, or another process has it open
+     */
+	public FactorStore(Path dir, long limit) throws IOException
+	{
+		this.dir = dir;
+		this.limit = limit;
+		Files.createDirectories(dir);
+		lockFile = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock held;
+		try
+		{
+			held = lockFile.tryLock();
+		}
+		catch(OverlappingFileLockException e){held = null;}		// this process has it open already
+		if(held == null)
+		{
+			lockFile.close();
+			throw new IOException(dir + " is in use by another process");
+		}
+		lock = held;
+		try
+		{
+			log = FileChannel.open(dir.resolve("factors.log"),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if(log.size() < LOG_HEADER)
+			{
+				ByteBuffer header = ByteBuffer.allocate(LOG_HEADER).putInt(LOG_MAGIC).putInt(VERSION);
+				header.flip();
+				log.write(header, 0);
+				log.truncate(LOG_HEADER);
+			}
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+			log.read(header, 0);
+			if(header.getInt(0) != LOG_MAGIC || header.getInt(4) != VERSION) throw new IOException(dir + " is not a factor store");
+			openIndex();
+		}
+		catch(IOException e)
+		{
+			// Let the next opener have it
+			if(log != null) log.close();
+			lockFile.close();
+			throw e;
+		}
+	}
+
+    /**
+     * @return the prime factorization of n, or null if n isn't in the store
+     */
+	public Factorization get(BigInteger n) throws IOException
+	{
+		guard.lock();
+		try
+		{
+			long offset = find(n);
+			return offset == 0 ? null : read(offset).primes;
+		}
+		finally
+		{
+			guard.unlock();
+		}
+	}
+
+    /**
+     * @requires primes is the prime factorization of n
+     * @param millis how long it took to find; compaction keeps the expensive ones
+     * @effects adds n to the store, unless it is already there
+     */
+	public void put(BigInteger n, Factorization primes, long millis) throws IOException
+	{
+		guard.lock();
+		try
+		{
+			if(find(n) != 0) return;
+			Wire.Encoder record = new Wire.Encoder(0).big(n).varint(Math.max(0, millis)).varint(primes.size());
+			for(int i = 0; i < primes.size(); i++) record.big(primes.factor(i)).varint(primes.exponent(i));
+			byte[] bytes = withCrc(record.frame());
+			long offset = logLength;
+			log.write(ByteBuffer.wrap(bytes), offset);
+			logLength += bytes.length;
+			insert(hash(n), offset);
+			count++;
+			writeHeader();
+			if(logLength > limit) compact(limit / 2);
+		}
+		finally
+		{
+			guard.unlock();
+		}
+	}
+
+    /**
+     * @return the number of factorizations in the store
+     */
+	public int size()
+	{
+		guard.lock();
+		try
+		{
+			return count;
+		}
+		finally
+		{
+			guard.unlock();
+		}
+	}
+
+    /**
+     * @effects rewrites the log with the most expensive factorizations that fit in bytes,
+     *  and rebuilds the index to match
+     */
+	public void compact(long bytes) throws IOException
+	{
+		guard.lock();
+		try
+		{
+			ArrayList<Record> records = scan(LOG_HEADER);
+			records.sort((a, b) -> a.millis != b.millis ? Long.compare(b.millis, a.millis)
+					: Integer.compare(b.n.bitLength(), a.n.bitLength()));
+			Path fresh = dir.resolve("factors.log.new");
+			try(FileChannel out = FileChannel.open(fresh, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				out.write(ByteBuffer.allocate(LOG_HEADER).putInt(LOG_MAGIC).putInt(VERSION).flip());
+				long used = LOG_HEADER;
+				for(Record r : records)
+				{
+					if(used + r.bytes.length > bytes) continue;
+					out.write(ByteBuffer.wrap(r.bytes));
+					used += r.bytes.length;
+				}
+				out.force(true);
+			}
+			// The new log takes the old one's place (the store stays locked throughout); the
+			// index is rebuilt from it.
+			log.close();
+			Files.move(fresh, dir.resolve("factors.log"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log = FileChannel.open(dir.resolve("factors.log"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			closeIndex();
+			Files.deleteIfExists(dir.resolve("factors.idx"));
+			openIndex();
+		}
+		finally
+		{
+			guard.unlock();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		guard.lock();
+		try
+		{
+			if(log == null) return;
+			writeHeader();
+			idx.force();
+			closeIndex();
+			log.force(true);
+			log.close();
+			log = null;
+			lock.release();
+			lockFile.close();
+		}
+		finally
+		{
+			guard.unlock();
+		}
+	}
+
+	// The index: open it, and bring it up to date with the log if it isn't
+
+	private void openIndex() throws IOException
+	{
+		idxFile = FileChannel.open(dir.resolve("factors.idx"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(IDX_HEADER);
+		idxFile.read(header, 0);
+		header.flip();
+		boolean good = header.remaining() == IDX_HEADER && header.getInt(0) == IDX_MAGIC && header.getInt(4) == VERSION
+				&& Integer.bitCount(header.getInt(8)) == 1 && header.getLong(16) >= LOG_HEADER
+				&& header.getLong(16) <= log.size()
+				&& idxFile.size() == IDX_HEADER + (long) header.getInt(8) * SLOT;
+		if(good)
+		{
+			capacity = header.getInt(8);
+			count = header.getInt(12);
+			logLength = header.getLong(16);
+			idx = idxFile.map(FileChannel.MapMode.READ_WRITE, 0, idxFile.size());
+		}
+		else
+		{
+			// Missing or damaged: start an empty one and index the whole log
+			count = 0;
+			logLength = LOG_HEADER;
+			mapEmpty(MIN_CAPACITY);
+		}
+		// Anything in the log past what the index covers (an append the index never heard about)
+		long end = logLength;
+		for(Record r : scan(logLength))
+		{
+			if(find(r.n) == 0)
+			{
+				insert(hash(r.n), end);
+				count++;
+			}
+			end += r.bytes.length;
+		}
+		logLength = end;
+		log.truncate(logLength);	// a torn record at the end, if any
+		writeHeader();
+	}
+
+	private void mapEmpty(int slots) throws IOException
+	{
+		capacity = slots;
+		idxFile.truncate(0);
+		long size = IDX_HEADER + (long) capacity * SLOT;
+		idx = idxFile.map(FileChannel.MapMode.READ_WRITE, 0, size);	// a new mapping reads as zeros
+		idx.putInt(0, IDX_MAGIC).putInt(4, VERSION).putInt(8, capacity);
+	}
+
+	private void closeIndex() throws IOException
+	{
+		idx = null;		// unmapped once collected
+		idxFile.close();
+	}
+
+	private void writeHeader()
+	{
+		idx.putInt(12, count).putLong(16, logLength);
+	}
+
+	// Offset of n's record in the log, or 0
+	private long find(BigInteger n) throws IOException
+	{
+		long h = hash(n);
+		for(int slot = (int) h & (capacity - 1); ; slot = (slot + 1) & (capacity - 1))
+		{
+			long at = IDX_HEADER + (long) slot * SLOT;
+			long offset = idx.getLong((int) at + 8);
+			if(offset == 0) return 0;
+			if(idx.getLong((int) at) == h && read(offset).n.equals(n)) return offset;
+		}
+	}
+
+	private void insert(long h, long offset) throws IOException
+	{
+		if((count + 1) * 10L > capacity * 7L) grow();
+		int slot = (int) h & (capacity - 1);
+		while(idx.getLong(IDX_HEADER + slot * SLOT + 8) != 0) slot = (slot + 1) & (capacity - 1);
+		idx.putLong(IDX_HEADER + slot * SLOT, h).putLong(IDX_HEADER + slot * SLOT + 8, offset);
+	}
+
+	// Doubles the index, putting every entry back
+	private void grow() throws IOException
+	{
+		long[] entries = new long[2 * count];
+		int k = 0;
+		for(int slot = 0; slot < capacity; slot++)
+		{
+			long offset = idx.getLong(IDX_HEADER + slot * SLOT + 8);
+			if(offset == 0) continue;
+			entries[k++] = idx.getLong(IDX_HEADER + slot * SLOT);
+			entries[k++] = offset;
+		}
+		int slots = capacity * 2;
+		mapEmpty(slots);
+		for(int i = 0; i < k; i += 2)
+		{
+			int slot = (int) entries[i] & (capacity - 1);
+			while(idx.getLong(IDX_HEADER + slot * SLOT + 8) != 0) slot = (slot + 1) & (capacity - 1);
+			idx.putLong(IDX_HEADER + slot * SLOT, entries[i]).putLong(IDX_HEADER + slot * SLOT + 8, entries[i + 1]);
+		}
+	}
+
+	// Records
+
+	private static class Record {
+		final BigInteger n;
+		final long millis;
+		final Factorization primes;
+		final byte[] bytes;		// as stored: frame then CRC
+
+		Record(BigInteger n, long millis, Factorization primes, byte[] bytes)
+		{
+			this.n = n;
+			this.millis = millis;
+			this.primes = primes;
+			this.bytes = bytes;
+		}
+	}
+
+	private Record read(long offset) throws IOException
+	{
+		// The length prefix is at most 4 bytes for any frame up to Wire.MAX_FRAME
+		ByteBuffer prefix = ByteBuffer.allocate(4);
+		log.read(prefix, offset);
+		int length = 0, size = 0;
+		for(int shift = 0; size < prefix.position(); shift += 7)
+		{
+			int b = prefix.get(size++) & 0xff;
+			length |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) break;
+		}
+		ByteBuffer rest = ByteBuffer.allocate(length + 4);
+		log.read(rest, offset + size);
+		byte[] bytes = new byte[size + length + 4];
+		prefix.get(0, bytes, 0, size);
+		rest.get(0, bytes, size, length + 4);
+		Record r = decode(bytes, size, length);
+		if(r == null) throw new IOException("damaged record at " + offset);
+		return r;
+	}
+
+	// The good records from offset on, stopping at the end of the log or the first bad one
+	private ArrayList<Record> scan(long offset) throws IOException
+	{
+		ArrayList<Record> records = new ArrayList<Record>();
+		InputStream in = new BufferedInputStream(Channels.newInputStream(log.position(offset)));
+		while(true)
+		{
+			byte[] payload;
+			byte[] crc = new byte[4];
+			try
+			{
+				payload = Wire.readFrame(in);
+				if(payload == null || in.readNBytes(crc, 0, 4) < 4) break;
+			}
+			catch(IOException e){break;}
+			byte[] frame = framed(payload, crc);
+			Record r = decode(frame, frame.length - payload.length - 4, payload.length);
+			if(r == null) break;
+			records.add(r);
+		}
+		return records;
+	}
+
+	// Length prefix, payload, CRC: a record's bytes as stored
+	private static byte[] framed(byte[] payload, byte[] crc)
+	{
+		int size = 1;
+		for(int length = payload.length; length >= 0x80; length >>>= 7) size++;
+		byte[] bytes = new byte[size + payload.length + 4];
+		int length = payload.length;
+		for(int i = 0; i < size; i++, length >>>= 7) bytes[i] = (byte) ((length & 0x7f) | (i < size - 1 ? 0x80 : 0));
+		System.arraycopy(payload, 0, bytes, size, payload.length);
+		System.arraycopy(crc, 0, bytes, size + payload.length, 4);
+		return bytes;
+	}
+
+	// The record in bytes, whose payload is length bytes from start; null if it fails its CRC or doesn't parse
+	private static Record decode(byte[] bytes, int start, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes, start, length);
+		if((int) crc.getValue() != ByteBuffer.wrap(bytes, start + length, 4).getInt()) return null;
+		try
+		{
+			Wire.Decoder d = new Wire.Decoder(Arrays.copyOfRange(bytes, start, start + length));
+			d.tag();
+			BigInteger n = d.big();
+			long millis = d.varint();
+			long k = d.varint();
+			if(k > length) return null;
+			Factorization primes = Factorization.ONE;
+			for(long i = 0; i < k; i++)
+			{
+				BigInteger p = d.big();
+				long e = d.varint();
+				if(p.compareTo(BigInteger.TWO) < 0 || e < 1 || e > Integer.MAX_VALUE) return null;
+				primes = primes.times(p, (int) e);
+			}
+			return new Record(n, millis, primes, bytes);
+		}
+		catch(IllegalArgumentException e){return null;}
+	}
+
+	// A frame with the CRC32 of its payload after it
+	private static byte[] withCrc(byte[] frame)
+	{
+		int size = 1;
+		while((frame[size - 1] & 0x80) != 0) size++;
+		CRC32 crc = new CRC32();
+		crc.update(frame, size, frame.length - size);
+		byte[] bytes = Arrays.copyOf(frame, frame.length + 4);
+		ByteBuffer.wrap(bytes, frame.length, 4).putInt((int) crc.getValue());
+		return bytes;
+	}
+
+	// 64-bit FNV-1a of n's bytes, then mixed so the low bits (the slot) depend on all of them
+	private static long hash(BigInteger n)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(byte b : n.toByteArray()) h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
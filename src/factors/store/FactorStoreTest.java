@@ -0,0 +1,122 @@
+package factors.store;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import util.BigMath;
+import util.Factorization;
+
+public class FactorStoreTest {
+
+	@Test
+	public void reopenTest() throws IOException {
+		Path dir = Files.createTempDirectory("store");
+		Random r = new Random(18);
+		BigInteger[] n = new BigInteger[3000];	// enough to grow the index a couple of times
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			for(int i = 0; i < n.length; i++)
+			{
+				n[i] = BigInteger.valueOf(2 + r.nextInt(1 << 30));
+				store.put(n[i], BigMath.factorRho(n[i], 1), i);
+			}
+			check(store, n);
+		}
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			check(store, n);
+			assertNull(store.get(BigInteger.ONE.shiftLeft(100)));
+		}
+		// The index is rebuilt from the log if it goes missing
+		Files.delete(dir.resolve("factors.idx"));
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			check(store, n);
+		}
+	}
+
+	@Test
+	public void tornTest() throws IOException {
+		Path dir = Files.createTempDirectory("store");
+		BigInteger a = new BigInteger("1000000016000000063"), b = new BigInteger("1000000000000000006");
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			store.put(a, BigMath.factorRho(a, 1), 10);
+			store.put(b, BigMath.factorRho(b, 1), 10);
+		}
+		// Cut the last record short, as if the process died writing it
+		try(FileChannel log = FileChannel.open(dir.resolve("factors.log"), StandardOpenOption.WRITE))
+		{
+			log.truncate(log.size() - 3);
+		}
+		Files.delete(dir.resolve("factors.idx"));
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			assertEquals(1, store.size());
+			assertEquals(2, store.get(a).count());
+			assertNull(store.get(b));
+			store.put(b, BigMath.factorRho(b, 1), 10);
+			assertEquals(BigMath.factorRho(b, 1), store.get(b));
+		}
+	}
+
+	@Test
+	public void compactTest() throws IOException {
+		Path dir = Files.createTempDirectory("store");
+		Random r = new Random(19);
+		try(FactorStore store = new FactorStore(dir, 20000))
+		{
+			BigInteger slow = new BigInteger("1000000016000000063");
+			store.put(slow, BigMath.factorRho(slow, 1), 1000000);
+			for(int i = 0; i < 2000; i++)
+			{
+				BigInteger n = BigInteger.valueOf(2 + r.nextInt(1 << 30));
+				store.put(n, BigMath.factorRho(n, 1), 0);
+			}
+			assertTrue(Files.size(dir.resolve("factors.log")) <= 20000);
+			assertTrue(store.size() < 2000);
+			// The expensive one is never dropped
+			assertEquals(2, store.get(slow).count());
+			// Compacting replaced the log, but the store is still locked
+			try
+			{
+				new FactorStore(dir, 20000);
+				fail("opened twice");
+			}
+			catch(IOException e){}
+		}
+		// and closing it lets go
+		new FactorStore(dir, 20000).close();
+	}
+
+	@Test(expected = IOException.class)
+	public void lockTest() throws IOException {
+		Path dir = Files.createTempDirectory("store");
+		try(FactorStore store = new FactorStore(dir, 1 << 30))
+		{
+			assertEquals(0, store.size());
+			new FactorStore(dir, 1 << 30);		// while store still has it open
+		}
+	}
+
+	private static void check(FactorStore store, BigInteger[] n) throws IOException {
+		for(BigInteger x : n)
+		{
+			Factorization primes = store.get(x);
+			assertNotNull(x.toString(), primes);
+			assertEquals(x, primes.product());
+		}
+		assertEquals(new HashSet<BigInteger>(Arrays.asList(n)).size(), store.size());
+	}
+}
@@ -0,0 +1,46 @@
+package immutable;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ImListTest {
+
+    // Long enough that one stack frame per element would overflow
+    private static final int LONG = 1000000;
+
+    @Test
+    public void longListTest() {
+        ImList<Integer> list = new EmptyImList<Integer>();
+        ImList<Integer> copy = new EmptyImList<Integer>();
+        for (int i = 0; i < LONG; i++) {
+            list = list.add(i % 1000);
+            copy = copy.add(i % 1000);
+        }
+        assertEquals(LONG, list.size());
+        assertTrue(list.contains(999));
+        assertFalse(list.contains(1000));
+        assertEquals(list, copy);
+        assertEquals(list.hashCode(), copy.hashCode());
+        assertFalse(list.equals(copy.add(0)));
+        assertFalse(list.equals(copy.rest().add(1)));
+        assertTrue(list.toString().startsWith("[999, 998, "));
+        // Removing from the far end copies the front and nothing else
+        ImList<Integer> shorter = list.remove(-1);
+        assertSame(list, shorter);
+        ImList<Integer> removed = list.add(5000).remove(5000);
+        assertEquals(list, removed);
+    }
+
+    @Test
+    public void shareTest() {
+        ImList<String> tail = new EmptyImList<String>().add("c").add("b");
+        ImList<String> list = tail.add("b").add("a");
+        ImList<String> removed = list.remove("b");
+        assertEquals("[a, b, c]", removed.toString());
+        assertSame(tail, removed.rest());            // everything after "b" is shared
+        assertEquals("[a, b, b, c]", list.toString());    // and list itself is unchanged
+        assertEquals(new EmptyImList<String>().add("c").add("b").add("a"), removed);
+        assertEquals("[]", new EmptyImList<String>().toString());
+    }
+}
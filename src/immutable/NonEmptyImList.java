@@ -7,39 +7,50 @@
  */
 package immutable;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 
 public class NonEmptyImList<E> implements ImList<E> {
-    private E element;
-    private ImList<E> rest;
-    private int size;
+    private final E element;
+    private final ImList<E> rest;
+    private final int size;
+    private final int hash;
 
     /**
      * abstraction function
      * A(this) = <element> ^ A(rest)
      * 
+     * size and hash are those of the whole list, worked out once from rest's own,
+     * so neither ever walks the list (elements' hash codes mustn't change).
+     * Every other traversal is a loop rather than a recursion, so no list is
+     * too long for the stack.
      */
 
     void checkRep () {
         assert element != null: "NonEmptyList: Rep invariant, element non null";
         assert rest != null: "NonEmptyList: Rep invariant, rest non null";
         assert size == rest.size() + 1: "NonEmptyList: Rep invariant, size";        
+        assert hash == rest.hashCode() + element.hashCode(): "NonEmptyList: Rep invariant, hash";
     }
 
     private NonEmptyImList (E e, ImList<E> r) {
         element = e;
         rest = r;
         size = r.size() + 1;
+        hash = r.hashCode() + e.hashCode();
     }
 
     public NonEmptyImList (E e) {
-        assert e != null: "NonEmptyList(null)";
-        element = e;
-        rest = new EmptyImList<E>();
-        size = 1;
+        this(nonNull(e), new EmptyImList<E>());
         checkRep();
     }
 
+    // Checks e before this(...) uses it
+    private static <E> E nonNull (E e) {
+        assert e != null: "NonEmptyList(null)";
+        return e;
+    }
+
     public ImList<E> add(E e) {
         assert e != null: "NonEmptyList.add(null)";
         return new NonEmptyImList<E> (e, this);
@@ -53,14 +64,18 @@ public class NonEmptyImList<E> implements ImList<E> {
 
     public ImList<E> remove(E e) {
         assert e != null: "NonEmptyList.remove(null)";
-        if (element.equals(e)) {
-            return rest;
-        }
-        else {
-            ImList<E> l = rest.remove (e);
-            if (l == rest) return this;
-            else return new NonEmptyImList<E> (element, l);
+        // Find the first occurrence, keeping the elements before it
+        ArrayList<E> before = new ArrayList<E>();
+        ImList<E> l = this;
+        while (!l.isEmpty() && !l.first().equals(e)) {
+            before.add(l.first());
+            l = l.rest();
         }
+        if (l.isEmpty()) return this;
+        // Everything after it is shared; only the elements before it are copied
+        ImList<E> result = l.rest();
+        for (int i = before.size() - 1; i >= 0; i--) result = result.add(before.get(i));
+        return result;
     }
 
     public ImList<E> rest() {
@@ -69,7 +84,9 @@ public class NonEmptyImList<E> implements ImList<E> {
 
     public boolean contains (E e) {
         assert e != null: "NonEmptyList.contains(null)";
-        return element.equals(e) || rest.contains(e);
+        for (ImList<E> l = this; !l.isEmpty(); l = l.rest())
+            if (l.first().equals(e)) return true;
+        return false;
     }
 
     public int size () {
@@ -89,6 +106,8 @@ public class NonEmptyImList<E> implements ImList<E> {
      * Compares the specified object with this list for equality.  Returns
      * <tt>true</tt> if the specified object is also a list, and the two lists
      * have the same elements in the same order.
+     * Stops as soon as the two lists share a node (the rest is the same list),
+     * and never looks at an element if the sizes or hash codes differ.
      * 
      * @return all i | e_i.equals(eo_i) where this list = [e_0,...,e_n] and o = [eo_0,...,eo_n]
      */
@@ -96,9 +115,16 @@ public class NonEmptyImList<E> implements ImList<E> {
     public boolean equals (Object o) {
         if (o == this) return true;
         if (!(o instanceof ImList)) return false;
-        ImList l = (ImList) o;
-        if (l.size() != size()) return false;
-        return first().equals(l.first()) && rest().equals(l.rest());
+        ImList<?> l = (ImList<?>) o;
+        if (l.size() != size || l.hashCode() != hash) return false;
+        ImList<?> m = this;
+        while (!m.isEmpty()) {
+            if (m == l) return true;
+            if (!m.first().equals(l.first())) return false;
+            m = m.rest();
+            l = l.rest();
+        }
+        return true;
     }
 
     /**
@@ -109,7 +135,7 @@ public class NonEmptyImList<E> implements ImList<E> {
      */
     @Override
     public int hashCode () {
-        return rest.hashCode() + (element == null ? 0 : element.hashCode());
+        return hash;
     }
 
     /**
@@ -119,13 +145,11 @@ public class NonEmptyImList<E> implements ImList<E> {
      */
     @Override
     public String toString () {
-        String s = "[";
-        ImList<E> l = this;
-        while (l.size() != 0) {
-            if (l != this) s += ", ";
-            s = s + l.first();
-            l = l.rest();
+        StringBuilder s = new StringBuilder("[");
+        for (ImList<E> l = this; !l.isEmpty(); l = l.rest()) {
+            if (l != this) s.append(", ");
+            s.append(l.first());
         }
-        return s + "]";
+        return s.append("]").toString();
     }
 }
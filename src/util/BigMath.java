@@ -1,35 +1,139 @@
 package util;
 
 import java.math.BigInteger;
-import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import immutable.*;
 
 public class BigMath {
 
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	// factorRho divides out primes up to here before it starts rho.
+	private static final long RHO_TRIAL_BOUND = 1000;
+	// Number of rho steps whose differences are multiplied together per gcd.
+	private static final int RHO_BATCH = 128;
+	// primesOf looks at its stop flag and cofactor once per this many candidates.
+	static final int SAFE_POINT = 1024;
+
+	/**
+	 * Hears from primesOf while it runs, so answers can go out before the search ends.
+	 */
+	public interface FactorSink {
+		/** Ignores everything. */
+		FactorSink NONE = new FactorSink() {
+			public void found(BigInteger x) {}
+			public void progress(long x) {}
+		};
+
+		/**
+		 * Called once for every prime factor, repeated factors repeated, as soon as it is found.
+		 */
+		void found(BigInteger x);
+
+		/**
+		 * Called every SAFE_POINT candidates: every candidate below x has been tried.
+		 */
+		void progress(long x);
+
+		/**
+		 * Called at every safe point and once at the end, with the work done since the last call:
+		 * how many candidates were tried, and how many divisions (remainders and quotients) that took.
+		 */
+		default void tested(long candidates, long divisions) {}
+
+		/**
+		 * Asked at the start and at every safe point: where to say what the search is doing.
+		 */
+		default Trace trace() {
+			return Trace.OFF;
+		}
+	}
+
     /**
      * Given a BigInteger input n, where n >= 0, returns the largest BigInteger r such that r*r <= n.
      * 
      * For n < 0, returns 0.
      * 
-     * 
-     * details: http://faruk.akgul.org/blog/javas-missing-algorithm-biginteger-sqrt
+     * Newton's iteration r' = (r + n/r) / 2, started just above the root from a double estimate
+     * of n's top bits, so it only needs a handful of steps (each doubling the correct bits).
+     * From above, the iterates fall monotonically to the floor of the root.
      * 
      * @param n BigInteger input.
      * @return for n >= 0: largest BigInteger r such that r*r <= n.
      *             n <  0: BigInteger 0
      */
     public static BigInteger sqrt(BigInteger n) {
-        BigInteger a = BigInteger.ONE;
-        BigInteger b = new BigInteger(n.shiftRight(5).add(new BigInteger("8")).toString());
-        while(b.compareTo(a) >= 0) {
-          BigInteger mid = new BigInteger(a.add(b).shiftRight(1).toString());
-          if (mid.multiply(mid).compareTo(n) > 0) 
-              b = mid.subtract(BigInteger.ONE);
-          else 
-              a = mid.add(BigInteger.ONE);
-        }
-        return a.subtract(BigInteger.ONE);
+    	if(n.signum() <= 0) return BigInteger.ZERO;
+    	if(n.bitLength() < 63) return BigInteger.valueOf(LongMath.sqrt(n.longValue()));
+    	// n = top * 2^shift with shift even and top < 2^54; sqrt(top) + 2 is safely above the root of top.
+    	int shift = (n.bitLength() - 52) & ~1;
+    	long top = n.shiftRight(shift).longValue();
+    	BigInteger r = BigInteger.valueOf((long) Math.sqrt((double) top) + 2).shiftLeft(shift / 2);
+    	while(true)
+    	{
+    		BigInteger next = r.add(n.divide(r)).shiftRight(1);
+    		if(next.compareTo(r) >= 0) return r;
+    		r = next;
+    	}
+    }
+
+    /**
+     * @requires n >= 0
+     * @return {r, n - r*r} where r = sqrt(n)
+     */
+    public static BigInteger[] sqrtRem(BigInteger n) {
+    	BigInteger r = sqrt(n);
+    	return new BigInteger[] { r, n.subtract(r.multiply(r)) };
+    }
+
+    /**
+     * @return true if n = r*r for some integer r
+     */
+    public static boolean isSquare(BigInteger n) {
+    	if(n.signum() < 0) return false;
+    	// Squares are 0, 1, 4 or 9 mod 16; that rules out 3/4 of numbers without a root.
+    	int low = n.intValue() & 15;
+    	if(low != 0 && low != 1 && low != 4 && low != 9) return false;
+    	return sqrtRem(n)[1].signum() == 0;
+    }
+
+    /**
+     * Newton's iteration r' = ((k-1)r + n/r^(k-1)) / k, started from the power of two just
+     * above the root; as with sqrt, the iterates fall monotonically to the floor of the root.
+     * @requires n >= 0, k >= 1
+     * @return largest BigInteger r such that r^k <= n
+     */
+    public static BigInteger root(BigInteger n, int k) {
+    	if(k == 1 || n.signum() == 0) return n;
+    	if(k == 2) return sqrt(n);
+    	BigInteger bk = BigInteger.valueOf(k), km1 = BigInteger.valueOf(k - 1);
+    	BigInteger r = BigInteger.ONE.shiftLeft((n.bitLength() + k - 1) / k);
+    	while(true)
+    	{
+    		BigInteger next = km1.multiply(r).add(n.divide(r.pow(k - 1))).divide(bk);
+    		if(next.compareTo(r) >= 0) return r;
+    		r = next;
+    	}
+    }
+
+    /**
+     * @requires n >= 2
+     * @return some r with r^k = n for a prime k, or null if n is not a perfect power
+     */
+    public static BigInteger perfectPowerRoot(BigInteger n) {
+    	if(isSquare(n)) return sqrt(n);
+    	// If n = r^k then n = s^p for each prime p dividing k, and 2^p <= n.
+    	for(int p = 3; p <= n.bitLength(); p += 2)
+    	{
+    		if(!LongMath.isPrime(p)) continue;
+    		BigInteger r = root(n, p);
+    		if(r.pow(p).equals(n)) return r;
+    	}
+    	return null;
     }
     
     /**
@@ -37,64 +141,257 @@ public class BigMath {
      * @requires BigInteger low, high such that 1 <= low <= high
      * @effects finds all prime BigIntegers x 
      *  such that low <= x <= high AND x divides N evenly.
-     *  Repeated prime factors will be found multiple times.
+     *  Repeated prime factors will be found multiple times, and counted in their exponents.
      *  Note that high need not be higher than sqrt(n), and will be set to sqrt(n) if so.
      */
-    public static ImList<BigInteger> primesOf(BigInteger n, BigInteger low, BigInteger high){
+    public static Factorization primesOf(BigInteger n, BigInteger low, BigInteger high){
+    	return primesOf(n, low, high, new AtomicBoolean(), new AtomicReference<BigInteger>(), FactorSink.NONE);
+    }
+
+    /**
+     * Same as primesOf(n, low, high), but looks at stop and cofactor every SAFE_POINT candidates.
+     * @param stop once set, the search ends and returns the factors found so far
+     * @param cofactor once set, what is left of n after dividing out factors found elsewhere.
+     *  The search carries on with gcd(n, cofactor) and ends at its square root.
+     *  Any prime still to be found here divides the cofactor too, so nothing is lost.
+     * @param sink told about every factor in the result as it is found, and about progress
+     *  at every safe point
+     */
+    public static Factorization primesOf(BigInteger n, BigInteger low, BigInteger high,
+    		AtomicBoolean stop, AtomicReference<BigInteger> cofactor, FactorSink sink){
     	// Confirm all arguments are in the proper range
     	if(low.compareTo(BigInteger.ONE) < 0) return null;    // If low<1 return null
     	if(low.compareTo(high) > 0) return null;			  // If low>high return null
     	if(n.compareTo(new BigInteger("2")) < 0) return null; // If n<2 return null
-    	if(high.compareTo(sqrt(n)) > 0) high = sqrt(n);       // If high > sqrt(n), high=sqrt(n)
+    	BigInteger root = sqrt(n);
+    	if(high.compareTo(root) > 0) high = root;             // If high > sqrt(n), high=sqrt(n)
     	
+    	// n fits in a long (and so does high <= sqrt(n)): use the primitive engine.
+    	if(n.bitLength() < 64)
+    		return LongMath.primesOf(n.longValue(), low.longValue(), high.longValue(), stop, cofactor, sink);
     	
-    	ImList<BigInteger> result = new EmptyImList<BigInteger>(); 
-    	for( BigInteger x = low; x.compareTo(high) <= 0; x = x.nextProbablePrime())
+    	Factorization.Builder result = new Factorization.Builder();
+    	BigInteger seen = null;		// last cofactor taken into account
+    	boolean stopped = false;
+    	long count = 0;
+    	long tested = 0, divisions = 0;		// since the sink last heard
+    	Trace trace = sink.trace();
+    	if(high.compareTo(BigInteger.valueOf(PrimeSieve.MAX_HIGH)) <= 0)
     	{
+    		// Take the candidates from a segmented sieve: they're all prime,
+    		// so there's no isPrime() call per candidate.
+    		PrimeSieve primes = new PrimeSieve(low.longValue(), high.longValue());
+    		long limit = high.longValue();
+    		for(long p = primes.next(); p > 0 && p <= limit; p = primes.next())
+    		{
+    			if(count++ % SAFE_POINT == 0)
+    			{
+    				sink.progress(p);
+    				sink.tested(tested, divisions);
+    				tested = divisions = 0;
+    				trace = sink.trace();
+    				if(stop.get())
+    				{
+    					stopped = true;
+    					break;
+    				}
+    				BigInteger m = cofactor.get();
+    				if(m != null && m != seen)
+    				{
+    					seen = m;
+    					n = n.gcd(m);
+    					high = high.min(sqrt(n));
+    					limit = high.longValue();
+    					if(n.equals(BigInteger.ONE) || p > limit) break;
+    				}
+    			}
+    			BigInteger x = BigInteger.valueOf(p);
+    			tested++;
+    			divisions++;
+    			while(n.mod(x).signum() == 0)
+    			{
+    				if(trace.on(Trace.Level.DEBUG)) trace.event(Trace.Level.DEBUG, "found", n, x);
+    				sink.found(x);
+    				result.add(x);
+    				n = n.divide(x);
+    				divisions += 2;
+    			}
+    			if(n.equals(BigInteger.ONE)) break;
+    		}
+    	}
+    	else for( BigInteger x = low; x.compareTo(high) <= 0; x = x.nextProbablePrime())
+    	{
+    		if(stop.get())
+    		{
+    			stopped = true;
+    			break;
+    		}
+    		BigInteger m = cofactor.get();
+    		if(m != null && m != seen)
+    		{
+    			seen = m;
+    			n = n.gcd(m);
+    			high = high.min(sqrt(n));
+    			if(n.equals(BigInteger.ONE) || x.compareTo(high) > 0) break;
+    		}
+    		tested++;
     		if(isPrime(x))
     		{
     			// While x divides evenly into n, add x to result. Then, divide out x.
+    			divisions++;
     			while(n.mod(x) == BigInteger.ZERO)
     			{
-    				System.out.println("found " + n + " " + x);
-    				result = result.add(x);
+    				if(trace.on(Trace.Level.DEBUG)) trace.event(Trace.Level.DEBUG, "found", n, x);
+    				sink.found(x);
+    				result.add(x);
     				n = n.divide(x);
+    				divisions += 2;
     			}
 				if(n.equals(BigInteger.ONE)) break;
     		}
     	}
+    	sink.tested(tested, divisions);
     	// If n still isn't 1 after all that and we covered the full range, n is a prime too.
-    	if(!n.equals(BigInteger.ONE)
+    	if(!stopped && !n.equals(BigInteger.ONE)
     	   && (low.compareTo(new BigInteger("2")) == 0)
     	   && (high.compareTo(sqrt(n)) >= 0))
     	{
-    		result = result.add(n);
-			System.out.println("Found factor " + n);
+    		result.add(n);
+    		if(trace.on(Trace.Level.INFO)) trace.event(Trace.Level.INFO, "cofactor", n, null);
+    		sink.found(n);
     	}
-    	return result;
+    	return result.build();
+    }
+
+    /**
+     * Same as primesOf(n, low, high, stop, cofactor, sink), with the range split into pieces
+     * searched at once by pool's workers (see ParallelPrimes). Ranges too short to be worth
+     * splitting, or too high for a PrimeSieve, are searched here as usual.
+     * The factors are the same. sink hears from one piece at a time, and progress is the
+     * lowest candidate some piece has yet to try.
+     */
+    public static Factorization primesOf(BigInteger n, BigInteger low, BigInteger high,
+    		AtomicBoolean stop, AtomicReference<BigInteger> cofactor, FactorSink sink, ForkJoinPool pool){
+    	BigInteger top = high.min(sqrt(n));
+    	if(pool.getParallelism() < 2 || top.compareTo(BigInteger.valueOf(PrimeSieve.MAX_HIGH)) > 0
+    	   || top.subtract(low).compareTo(BigInteger.valueOf(2 * ParallelPrimes.MIN_PIECE)) < 0)
+    		return primesOf(n, low, high, stop, cofactor, sink);
+    	return new ParallelPrimes(n, low.longValue(), top.longValue(), stop, cofactor, sink, pool.getParallelism()).run(pool);
     }
     
     /**
-     * @effects Returns true if prime, false if not prime.
-     * The value in the first line, isProbablePrime(10), can be edited for improved accuracy
-     * (increase 10 to something else) at the cost of significant overhead.
-     * Code thanks to a thread on CodeReview:
-     * http://codereview.stackexchange.com/questions/43490/biginteger-prime-testing/
+     * @requires BigInteger n such that 2 <= n
+     * @effects Factors n completely. Primes up to RHO_TRIAL_BOUND are divided out first,
+     *  then whatever composites are left get split with Pollard-Brent rho, starting from
+     *  the given seed (and moving on to seed+1, seed+2, ... if a seed fails).
+     *  Different seeds take different random walks, so several servers can race on one n.
+     * @returns the prime factorization of n, or null if n < 2.
+     *  Its product is n, so verify accepts it as-is.
      */
-    public static Boolean isPrime(BigInteger n){
-    	if(!n.isProbablePrime(10)) return false;
-    	if(n.compareTo(BigInteger.ONE) == 0 || (n.compareTo(new BigInteger("2")) == 0)) return true;
-    	BigInteger root = sqrt(n);
-    	
-    	for(BigInteger i = new BigInteger("3"); (i.compareTo(root) <= 0); i = i.nextProbablePrime() )
+    public static Factorization factorRho(BigInteger n, long seed){
+    	return factorRho(n, seed, new AtomicBoolean());
+    }
+
+    /**
+     * Same as factorRho(n, seed), but gives up and returns null as soon as stop is set.
+     */
+    public static Factorization factorRho(BigInteger n, long seed, AtomicBoolean stop){
+    	if(n.compareTo(TWO) < 0) return null;
+    	Factorization.Builder result = new Factorization.Builder();
+
+    	// Rho is slow on tiny factors (and useless on 2), so trial divide those away.
+    	PrimeSieve small = new PrimeSieve(2, RHO_TRIAL_BOUND);
+    	for(long p = small.next(); p > 0; p = small.next())
+    	{
+    		BigInteger x = BigInteger.valueOf(p);
+    		int e = 0;
+    		for(; n.mod(x).signum() == 0; e++) n = n.divide(x);
+    		if(e > 0) result.add(x, e);
+    	}
+
+    	// Split composites until only primes are left. The ImList doubles as a stack.
+    	ImList<BigInteger> composites = new EmptyImList<BigInteger>();
+    	if(!n.equals(BigInteger.ONE)) composites = composites.add(n);
+    	while(!composites.isEmpty())
+    	{
+    		BigInteger m = composites.first();
+    		composites = composites.rest();
+    		if(isPrime(m))
+    		{
+    			result.add(m);
+    			continue;
+    		}
+    		BigInteger d = null;
+    		for(long s = seed; d == null; s++)
+    		{
+    			if(stop.get()) return null;
+    			d = rho(m, s, stop);
+    		}
+    		composites = composites.add(d).add(m.divide(d));
+    	}
+    	return result.build();
+    }
+
+    /**
+     * Pollard's rho with Brent's cycle detection. Differences are multiplied together
+     * mod n and only every RHO_BATCH steps is a gcd taken; if a batch overshoots
+     * (gcd == n), the batch is replayed one step at a time.
+     * 
+     * details: R. P. Brent, "An improved Monte Carlo factorization algorithm", BIT 20 (1980)
+     * 
+     * @requires BigInteger n odd, composite, and not divisible by any prime <= RHO_TRIAL_BOUND
+     * @param seed picks the polynomial x^2 + c and the starting point
+     * @param stop checked once per batch; set it to give up early
+     * @returns a nontrivial factor of n, or null if this seed failed or stop was set
+     */
+    public static BigInteger rho(BigInteger n, long seed, AtomicBoolean stop){
+    	Random rnd = new Random(seed);
+    	BigInteger c = new BigInteger(n.bitLength(), rnd).mod(n.subtract(BigInteger.ONE)).add(BigInteger.ONE);
+    	BigInteger y = new BigInteger(n.bitLength(), rnd).mod(n);
+    	BigInteger x = y, ys = y, q = BigInteger.ONE, g = BigInteger.ONE;
+
+    	for(long r = 1; g.equals(BigInteger.ONE); r <<= 1)
     	{
-    		if(n.mod(i).equals(BigInteger.ZERO)) return false;
+    		x = y;
+    		for(long i = 0; i < r; i++) y = y.multiply(y).add(c).mod(n);
+    		for(long k = 0; k < r && g.equals(BigInteger.ONE); k += RHO_BATCH)
+    		{
+    			if(stop.get()) return null;
+    			ys = y;
+    			long steps = Math.min(RHO_BATCH, r - k);
+    			for(long i = 0; i < steps; i++)
+    			{
+    				y = y.multiply(y).add(c).mod(n);
+    				q = q.multiply(x.subtract(y).abs()).mod(n);
+    			}
+    			g = q.gcd(n);
+    		}
+    	}
+    	if(g.equals(n))
+    	{
+    		// The batch overshot: replay it one gcd at a time.
+    		do
+    		{
+    			ys = ys.multiply(ys).add(c).mod(n);
+    			g = x.subtract(ys).abs().gcd(n);
+    		}while(g.equals(BigInteger.ONE));
     	}
-    	return true;
+    	return g.equals(n) ? null : g;
     }
 
     /**
-     * @requires ImList<BigInteger> primes, the output of one or more primesOf() calls
+     * @effects Returns true if prime, false if not prime.
+     * Values that fit in a long are decided exactly, by Miller-Rabin with a fixed witness set;
+     * larger ones by Baillie-PSW, which no known composite passes. See Primality for both.
+     * Where a certain answer is worth O(sqrt(n)) work, use Primality.isPrimeByTrialDivision.
+     */
+    public static Boolean isPrime(BigInteger n){
+    	return Primality.isPrime(n);
+    }
+
+    /**
+     * @requires ImList<BigInteger> primes, the factors one or more primesOf() searches reported,
+     *  one per repeat (see verify for a Factorization)
      * @requires BigInteger n, the same number called with primesOf()
      * @effects Verifies the product of primes = n. At most one prime can be > sqrt(n),
 	 * so this ensures a missing factor is prime and adds it to the list. 
@@ -102,12 +399,7 @@ public class BigMath {
      */
 	public static ImList<BigInteger> getVerifiedPrimes( ImList<BigInteger> primes, BigInteger n)
 	{
-		BigInteger p = BigInteger.ONE;
-		Iterator<BigInteger> it = primes.iterator();
-		while( it.hasNext() )
-		{
-			p = it.next().multiply(p);
-		}
+		BigInteger p = primes.isEmpty() ? BigInteger.ONE : Factorization.of(primes).product();
 		// If factors multiply up to n, we're golden. Return the list with no change.
 		if( p.compareTo(n) == 0) return primes;
 
@@ -116,12 +408,27 @@ public class BigMath {
 		
 		// Otherwise, the product is <n and we're just missing a factor.
 		BigInteger x = n.divide(p);
-		if( x.isProbablePrime(10) && x.multiply(p).compareTo(n) == 0)return primes.add(x);
+		if( isPrime(x) && x.multiply(p).compareTo(n) == 0)return primes.add(x);
 		else
 			// If n/p isn't prime or x*p isn't n, somebody goofed. Return an error value.
 			return new NonEmptyImList<BigInteger>(BigInteger.ZERO);
 	}
 	
+    /**
+     * The same check as getVerifiedPrimes, for a Factorization.
+     * @requires factors holds only primes, and n >= 1
+     * @return factors if their product is n; factors times n/product if that is a prime;
+     *  null if neither (something has gone wrong)
+     */
+	public static Factorization verify(Factorization factors, BigInteger n)
+	{
+		BigInteger p = factors.product();
+		if(p.equals(n)) return factors;
+		if(p.compareTo(n) > 0 || n.mod(p).signum() != 0) return null;
+		BigInteger x = n.divide(p);
+		return isPrime(x) ? factors.times(x, 1) : null;
+	}
+
     /**
      * @requires ImList<BigInteger> primes, the output of getVerifiedPrimes
      * @returns false if primes contains ZERO (the error value of getVerifiedPrimes),
@@ -129,6 +436,7 @@ public class BigMath {
      */
 	public static Boolean isValidPrimeList( ImList<BigInteger> primes)
 	{
-		return !primes.contains(BigInteger.ZERO) || primes.size() == 0;
+		// The error value is the list [0], and no list of primes holds 0: one look will do.
+		return primes.isEmpty() || !primes.first().equals(BigInteger.ZERO);
 	}
 }
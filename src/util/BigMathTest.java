@@ -5,12 +5,69 @@ import java.io.Console;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
 
 import org.junit.Test;
 import immutable.*;
 
 public class BigMathTest {
 
+	@Test
+	public void SqrtTest() {
+		assertEquals(BigInteger.ZERO, BigMath.sqrt(new BigInteger("-5")));
+		assertEquals(new BigInteger("3"), BigMath.sqrt(new BigInteger("15")));
+		Random r = new Random(6005);
+		for(int i = 0; i < 2000; i++)
+		{
+			BigInteger n = new BigInteger(1 + r.nextInt(2048), r);
+			BigInteger[] root = BigMath.sqrtRem(n);
+			assertTrue(root[0].multiply(root[0]).compareTo(n) <= 0);
+			assertTrue(root[0].add(BigInteger.ONE).pow(2).compareTo(n) > 0);
+			assertEquals(n, root[0].pow(2).add(root[1]));
+			assertEquals(root[1].signum() == 0, BigMath.isSquare(n));
+			assertTrue(BigMath.isSquare(n.multiply(n)));
+			assertFalse(BigMath.isSquare(n.multiply(n).add(BigInteger.ONE)) && n.signum() > 0);
+		}
+	}
+
+	@Test
+	public void RootTest() {
+		Random r = new Random(6005);
+		for(int i = 0; i < 2000; i++)
+		{
+			BigInteger n = new BigInteger(1 + r.nextInt(1024), r);
+			int k = 1 + r.nextInt(40);
+			BigInteger root = BigMath.root(n, k);
+			assertTrue(root.pow(k).compareTo(n) <= 0);
+			assertTrue(root.add(BigInteger.ONE).pow(k).compareTo(n) > 0);
+		}
+		// p^3 for p around 100 bits: no square, and out of the sieve's reach
+		BigInteger p = BigInteger.probablePrime(100, r);
+		assertEquals(p, BigMath.perfectPowerRoot(p.pow(3)));
+		assertEquals(p.pow(2), BigMath.perfectPowerRoot(p.pow(4)));
+		assertEquals(BigInteger.TWO, BigMath.perfectPowerRoot(BigInteger.TWO.pow(331)));
+		assertNull(BigMath.perfectPowerRoot(p.pow(3).multiply(BigInteger.TWO)));
+		assertNull(BigMath.perfectPowerRoot(p));
+	}
+
+	@Test
+	public void RhoTest() {
+		// 1000003 * 1000000007 * 1000000000039 * 2^3 * 3
+		BigInteger n = new BigInteger("1000003").multiply(new BigInteger("1000000007"))
+				.multiply(new BigInteger("1000000000039")).multiply(new BigInteger("24"));
+		for(long seed = 1; seed <= 3; seed++)
+		{
+			Factorization factors = BigMath.factorRho(n, seed);
+			assertEquals(7, factors.count());
+			assertEquals("2^3*3*1000003*1000000007*1000000000039", factors.toString());
+			assertSame(factors, BigMath.verify(factors, n));
+		}
+		assertEquals("1000000007", BigMath.factorRho(new BigInteger("1000000007"), 1).toString());
+		assertNull(BigMath.factorRho(BigInteger.ONE, 1));
+	}
+
 	@Test
 	public void PrimeTest() {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
@@ -26,8 +83,7 @@ public class BigMathTest {
 				BigInteger n    = new BigInteger(input[1]);
 				BigInteger low  = new BigInteger(input[2]);
 				BigInteger high = new BigInteger(input[3]);
-				ImList<BigInteger> factors = new EmptyImList<BigInteger>();
-				factors = BigMath.primesOf(n, low, high);
+				Factorization factors = BigMath.primesOf(n, low, high);
 				if( factors != null)
 				{
 					System.out.println(factors);
@@ -0,0 +1,177 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lenstra's elliptic curve method, on Montgomery curves By^2 = x^3 + Ax^2 + x
+ * with Suyama's parametrization, using x-only projective (X:Z) arithmetic.
+ *
+ * Stage 1 multiplies a point by every prime power <= B1 with a Montgomery ladder.
+ * Stage 2 is the standard continuation: for every prime q in (B1, B2], written as
+ * q = mD +- j, it accumulates X(mDQ)Z(jQ) - X(jQ)Z(mDQ), which is 0 mod p exactly
+ * when qQ is the identity mod p. One gcd at the end of each stage finds the factor.
+ *
+ * Every curve is picked by its seed alone, so separate servers given
+ * separate seeds never repeat each other's work.
+ *
+ * details: P. L. Montgomery, "Speeding the Pollard and elliptic curve methods
+ * of factorization", Math. Comp. 48 (1987)
+ */
+public class Ecm {
+
+	/** Stage 1 bound that suits factors of about 25 digits. */
+	public static final long DEFAULT_B1 = 50000;
+	/** Stage 2 bound to go with DEFAULT_B1. */
+	public static final long DEFAULT_B2 = 100 * DEFAULT_B1;
+
+	// Giant step size for stage 2: 2*3*5*7*11, so only D/2 baby steps are needed.
+	private static final int D = 2310;
+	// 0Q, the point at infinity, in (X:Z)
+	private static final BigInteger[] INFINITY = { BigInteger.ONE, BigInteger.ZERO };
+	// Primes below this are found by trial division instead of wasting curves on them.
+	private static final long TRIAL_BOUND = 1000;
+	// How often (in primes) the stop flag is looked at.
+	private static final int STOP_CHECK = 256;
+
+    /**
+     * Try curves seed, seed+1, ..., seed+curves-1 on n, until one of them finds a factor.
+     *
+     * @requires n >= 2, 0 <= seed, 1 <= B1 <= B2
+     * @param stop checked between (and within) curves; set it to give up early
+     * @returns a nontrivial factor of n (not necessarily prime), or null if n is prime,
+     *  no curve found anything, or stop was set
+     */
+	public static BigInteger factor(BigInteger n, long b1, long b2, long seed, int curves, AtomicBoolean stop) {
+		if(Primality.isPrime(n)) return null;
+		// Small factors (and even n, which the curve arithmetic can't handle) come out here.
+		PrimeSieve small = new PrimeSieve(2, TRIAL_BOUND);
+		for(long p = small.next(); p > 0; p = small.next())
+		{
+			BigInteger x = BigInteger.valueOf(p);
+			if(n.mod(x).signum() == 0 && !n.equals(x)) return x;
+		}
+		for(int i = 0; i < curves && !stop.get(); i++)
+		{
+			BigInteger d = curve(n, b1, b2, seed + i, stop);
+			if(d != null) return d;
+		}
+		return null;
+	}
+
+    /**
+     * Run one curve, stage 1 and stage 2.
+     *
+     * @requires n odd and composite, 0 <= seed, 1 <= B1 <= B2
+     * @returns a nontrivial factor of n, or null if this curve found none (or stop was set)
+     */
+	public static BigInteger curve(BigInteger n, long b1, long b2, long seed, AtomicBoolean stop) {
+		// Suyama: sigma >= 6, u = sigma^2 - 5, v = 4 sigma,
+		// Q = (u^3 : v^3), (A+2)/4 = (v-u)^3 (3u+v) / (16 u^3 v)
+		BigInteger sigma = BigInteger.valueOf(seed).add(BigInteger.valueOf(6));
+		BigInteger u = sigma.multiply(sigma).subtract(BigInteger.valueOf(5)).mod(n);
+		BigInteger v = sigma.shiftLeft(2).mod(n);
+		BigInteger u3 = u.pow(3).mod(n);
+		BigInteger num = v.subtract(u).pow(3).multiply(u.multiply(BigInteger.valueOf(3)).add(v)).mod(n);
+		BigInteger den = u3.multiply(v).shiftLeft(4).mod(n);
+		BigInteger g = den.gcd(n);
+		if(!g.equals(BigInteger.ONE)) return g.equals(n) ? null : g;
+		BigInteger a24 = num.multiply(den.modInverse(n)).mod(n);
+		BigInteger[] q = { u3, v.pow(3).mod(n) };
+
+		// Stage 1: Q = (product of all prime powers <= B1) Q
+		PrimeSieve primes = new PrimeSieve(2, b1);
+		int count = 0;
+		for(long p = primes.next(); p > 0; p = primes.next())
+		{
+			long pk = p;
+			while(pk <= b1 / p) pk *= p;
+			q = multiply(q, pk, n, a24);
+			if(++count % STOP_CHECK == 0 && stop.get()) return null;
+		}
+		g = q[1].gcd(n);
+		if(g.equals(n)) return null;
+		if(!g.equals(BigInteger.ONE)) return g;
+
+		// Stage 2 baby steps: jQ for odd j <= D/2, built from (j+2)Q = jQ + 2Q (difference (j-2)Q)
+		BigInteger[][] baby = new BigInteger[D / 2 + 1][];
+		BigInteger[] q2 = doubled(q, n, a24);
+		baby[1] = q;
+		baby[3] = add(q2, q, q, n);
+		for(int j = 5; j <= D / 2; j += 2) baby[j] = add(baby[j - 2], q2, baby[j - 4], n);
+
+		// Giant steps: r = mDQ and next = (m+1)DQ, advanced by adding t = DQ (difference (m-1)DQ).
+		// Primes below D/2 have m = 0, where r is the point at infinity and the term below is
+		// just Z(jQ). (2 would need an even j, but B1 >= 2 has already taken care of it.)
+		BigInteger[] t = multiply(q, D, n, a24);
+		BigInteger[] r = null, next = null;
+		long m = 0;
+		BigInteger acc = BigInteger.ONE;
+		primes = new PrimeSieve(Math.max(b1, 2) + 1, b2);
+		count = 0;
+		for(long p = primes.next(); p > 0; p = primes.next())
+		{
+			long mp = (p + D / 2) / D;
+			int j = (int) Math.abs(p - mp * D);
+			if(r == null)
+			{
+				m = mp;
+				r = m == 0 ? INFINITY : multiply(q, m * D, n, a24);
+				next = multiply(q, (m + 1) * D, n, a24);
+			}
+			while(m < mp)
+			{
+				// From m = 0 the difference is infinity, which add() can't take: 2DQ is a doubling
+				BigInteger[] after = m == 0 ? doubled(next, n, a24) : add(next, t, r, n);
+				r = next;
+				next = after;
+				m++;
+			}
+			acc = acc.multiply(r[0].multiply(baby[j][1]).subtract(baby[j][0].multiply(r[1]))).mod(n);
+			if(++count % STOP_CHECK == 0 && stop.get()) return null;
+		}
+		g = acc.gcd(n);
+		if(g.equals(n) || g.equals(BigInteger.ONE)) return null;
+		return g;
+	}
+
+	// kP by Montgomery ladder, k >= 1
+	private static BigInteger[] multiply(BigInteger[] p, long k, BigInteger n, BigInteger a24) {
+		if(k == 1) return p;
+		BigInteger[] r0 = p;
+		BigInteger[] r1 = doubled(p, n, a24);
+		for(int i = 62 - Long.numberOfLeadingZeros(k); i >= 0; i--)
+		{
+			if(((k >>> i) & 1) != 0)
+			{
+				r0 = add(r1, r0, p, n);
+				r1 = doubled(r1, n, a24);
+			}
+			else
+			{
+				r1 = add(r0, r1, p, n);
+				r0 = doubled(r0, n, a24);
+			}
+		}
+		return r0;
+	}
+
+	// 2P
+	private static BigInteger[] doubled(BigInteger[] p, BigInteger n, BigInteger a24) {
+		BigInteger s = p[0].add(p[1]);
+		BigInteger d = p[0].subtract(p[1]);
+		BigInteger ss = s.multiply(s).mod(n);
+		BigInteger dd = d.multiply(d).mod(n);
+		BigInteger e = ss.subtract(dd);
+		return new BigInteger[] { ss.multiply(dd).mod(n), e.multiply(dd.add(a24.multiply(e))).mod(n) };
+	}
+
+	// P + Q, given their difference P - Q
+	private static BigInteger[] add(BigInteger[] p, BigInteger[] q, BigInteger[] diff, BigInteger n) {
+		BigInteger u = p[0].subtract(p[1]).multiply(q[0].add(q[1]));
+		BigInteger v = p[0].add(p[1]).multiply(q[0].subtract(q[1]));
+		BigInteger sum = u.add(v).mod(n);
+		BigInteger dif = u.subtract(v).mod(n);
+		return new BigInteger[] { diff[1].multiply(sum.multiply(sum)).mod(n), diff[0].multiply(dif.multiply(dif)).mod(n) };
+	}
+}
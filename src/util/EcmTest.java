@@ -0,0 +1,49 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class EcmTest {
+
+	// 2^61 - 1 and 2^89 - 1 are prime
+	private static final BigInteger M61 = BigInteger.ONE.shiftLeft(61).subtract(BigInteger.ONE);
+	private static final BigInteger M89 = BigInteger.ONE.shiftLeft(89).subtract(BigInteger.ONE);
+
+	@Test
+	public void factorTest() {
+		BigInteger p = new BigInteger("1000000007");
+		BigInteger n = p.multiply(M89);
+		BigInteger d = Ecm.factor(n, 2000, 200000, 0, 50, new AtomicBoolean());
+		assertNotNull(d);
+		assertTrue(d.equals(p) || d.equals(M89));
+	}
+
+	@Test
+	public void smallAndPrimeTest() {
+		assertEquals(BigInteger.valueOf(7), Ecm.factor(M61.multiply(BigInteger.valueOf(7)), 2000, 200000, 0, 1, new AtomicBoolean()));
+		assertNull(Ecm.factor(M89, 2000, 200000, 0, 1, new AtomicBoolean()));
+	}
+
+	@Test
+	public void belowGiantStepTest() {
+		// Stage 2 covers all of (B1, B2], below its giant step D = 2310 too. Curve 2's point
+		// mod 1000037 has order 2081 times primes below 2000; curve 1's mod 1000003 has order
+		// 421 times primes below 100, which is found with no giant step at all.
+		BigInteger p = BigInteger.valueOf(1000037);
+		assertNull(Ecm.curve(p.multiply(M89), 2000, 2000, 2, new AtomicBoolean()));
+		assertEquals(p, Ecm.curve(p.multiply(M89), 2000, 2310, 2, new AtomicBoolean()));
+		p = BigInteger.valueOf(1000003);
+		assertNull(Ecm.curve(p.multiply(M89), 100, 100, 1, new AtomicBoolean()));
+		assertEquals(p, Ecm.curve(p.multiply(M89), 100, 1155, 1, new AtomicBoolean()));
+	}
+
+	@Test
+	public void stopTest() {
+		AtomicBoolean stop = new AtomicBoolean(true);
+		assertNull(Ecm.factor(M61.multiply(M89), 2000, 200000, 0, 1000, stop));
+	}
+}
@@ -0,0 +1,281 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import immutable.EmptyImList;
+import immutable.ImList;
+
+/**
+ * An immutable factorization p1^e1 * p2^e2 * ... * pk^ek, with p1 < p2 < ... < pk.
+ *
+ * Each distinct factor is kept once, with its exponent, so 2^10000 is one entry rather
+ * than ten thousand list cells. The factors are kept in a long[] when every one of them
+ * fits in a long, and in a BigInteger[] otherwise.
+ * Iterating goes over the factors with repeats, smallest first. A Builder collects
+ * factors one at a time as they are found, counting repeats as they come.
+ *
+ * Nothing here checks that the factors are prime; BigMath.verify does that for the
+ * factors it adds, and relies on its callers for the rest.
+ */
+public final class Factorization implements Iterable<BigInteger> {
+
+	/** The empty product. */
+	public static final Factorization ONE = new Factorization(new long[0], null, new int[0]);
+
+	private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+	private final long[] small;       // the factors, if every one fits in a long; else null
+	private final BigInteger[] big;   // the factors, if small is null
+	private final int[] exponents;    // each >= 1
+
+	private Factorization(long[] small, BigInteger[] big, int[] exponents) {
+		this.small = small;
+		this.big = big;
+		this.exponents = exponents;
+	}
+
+    /**
+     * @requires every element of factors is >= 2
+     * @return the product of factors, repeated factors repeated, in any order
+     */
+	public static Factorization of(Iterable<BigInteger> factors) {
+		Builder builder = new Builder();
+		for(BigInteger p : factors) builder.add(p);
+		return builder.build();
+	}
+
+    /**
+     * Collects a factorization one factor at a time, in any order.
+     *     Factorization f = new Factorization.Builder().add(p).add(q, 2).build();
+     */
+	public static final class Builder {
+		private final TreeMap<BigInteger, Integer> exponents = new TreeMap<BigInteger, Integer>();
+
+        /**
+         * @requires p >= 2, e >= 1
+         * @effects multiplies what has been added so far by p^e
+         */
+		public Builder add(BigInteger p, int e) {
+			exponents.merge(p, e, Integer::sum);
+			return this;
+		}
+
+        /**
+         * @requires p >= 2
+         * @effects multiplies what has been added so far by p
+         */
+		public Builder add(BigInteger p) {
+			return add(p, 1);
+		}
+
+        /**
+         * @return the product of everything added so far
+         */
+		public Factorization build() {
+			BigInteger[] factors = new BigInteger[exponents.size()];
+			int[] powers = new int[factors.length];
+			int i = 0;
+			for(Map.Entry<BigInteger, Integer> e : exponents.entrySet())
+			{
+				factors[i] = e.getKey();
+				powers[i++] = e.getValue();
+			}
+			return make(factors, powers);
+		}
+	}
+
+	// factors strictly increasing
+	private static Factorization make(BigInteger[] factors, int[] exponents) {
+		if(factors.length > 0 && factors[factors.length - 1].compareTo(LONG_MAX) > 0)
+			return new Factorization(null, factors, exponents);
+		long[] small = new long[factors.length];
+		for(int i = 0; i < factors.length; i++) small[i] = factors[i].longValue();
+		return new Factorization(small, null, exponents);
+	}
+
+    /**
+     * @requires p >= 2, e >= 1
+     * @return this times p^e
+     */
+	public Factorization times(BigInteger p, int e) {
+		int k = size();
+		int i = 0;
+		while(i < k && factor(i).compareTo(p) < 0) i++;
+		boolean here = i < k && factor(i).equals(p);
+		BigInteger[] factors = new BigInteger[here ? k : k + 1];
+		int[] exponents = new int[factors.length];
+		for(int j = 0, from = 0; j < factors.length; j++)
+		{
+			if(j == i)
+			{
+				factors[j] = p;
+				exponents[j] = here ? this.exponents[from++] + e : e;
+			}
+			else
+			{
+				factors[j] = factor(from);
+				exponents[j] = this.exponents[from++];
+			}
+		}
+		return make(factors, exponents);
+	}
+
+    /**
+     * @return this times f, merging the two in one pass
+     */
+	public Factorization times(Factorization f) {
+		if(f.size() == 0) return this;
+		if(size() == 0) return f;
+		BigInteger[] factors = new BigInteger[size() + f.size()];
+		int[] exponents = new int[factors.length];
+		int i = 0, j = 0, k = 0;
+		while(i < size() || j < f.size())
+		{
+			int c = i == size() ? 1 : j == f.size() ? -1 : factor(i).compareTo(f.factor(j));
+			factors[k] = c <= 0 ? factor(i) : f.factor(j);
+			exponents[k++] = (c <= 0 ? this.exponents[i++] : 0) + (c >= 0 ? f.exponents[j++] : 0);
+		}
+		return make(Arrays.copyOf(factors, k), Arrays.copyOf(exponents, k));
+	}
+
+    /**
+     * @return the part of this made of factors in [low, high]
+     */
+	public Factorization between(BigInteger low, BigInteger high) {
+		int from = 0;
+		while(from < size() && factor(from).compareTo(low) < 0) from++;
+		int to = from;
+		while(to < size() && factor(to).compareTo(high) <= 0) to++;
+		if(from == 0 && to == size()) return this;
+		BigInteger[] factors = new BigInteger[to - from];
+		for(int i = from; i < to; i++) factors[i - from] = factor(i);
+		return make(factors, Arrays.copyOfRange(exponents, from, to));
+	}
+
+    /**
+     * @return the number of distinct factors
+     */
+	public int size() {
+		return exponents.length;
+	}
+
+    /**
+     * @requires 0 <= i < size()
+     * @return the i'th smallest distinct factor
+     */
+	public BigInteger factor(int i) {
+		return small != null ? BigInteger.valueOf(small[i]) : big[i];
+	}
+
+    /**
+     * @requires 0 <= i < size()
+     * @return how many times factor(i) divides the product
+     */
+	public int exponent(int i) {
+		return exponents[i];
+	}
+
+    /**
+     * @return the number of factors, repeated factors repeated
+     */
+	public long count() {
+		long count = 0;
+		for(int e : exponents) count += e;
+		return count;
+	}
+
+    /**
+     * @return p1^e1 * ... * pk^ek. Each power is taken by repeated squaring, and the
+     *  powers are multiplied together in a balanced tree, so no step multiplies a huge
+     *  partial product by one small factor.
+     */
+	public BigInteger product() {
+		if(size() == 0) return BigInteger.ONE;
+		BigInteger[] powers = new BigInteger[size()];
+		for(int i = 0; i < powers.length; i++) powers[i] = factor(i).pow(exponents[i]);
+		for(int width = powers.length; width > 1; width = (width + 1) / 2)
+		{
+			for(int i = 0; i < width / 2; i++)
+				powers[i] = powers[2 * i].multiply(powers[2 * i + 1]);
+			// An odd one out at the end moves down a level untouched
+			if(width % 2 == 1) powers[width / 2] = powers[width - 1];
+		}
+		return powers[0];
+	}
+
+    /**
+     * @return the factors, repeated factors repeated, smallest first
+     */
+	public ImList<BigInteger> toList() {
+		ImList<BigInteger> list = new EmptyImList<BigInteger>();
+		for(int i = size() - 1; i >= 0; i--)
+		{
+			BigInteger p = factor(i);
+			for(int j = 0; j < exponents[i]; j++) list = list.add(p);
+		}
+		return list;
+	}
+
+	public Iterator<BigInteger> iterator() {
+		return new Iterator<BigInteger>() {
+			private int i = 0, j = 0;    // factor i, repeat j
+			private BigInteger current = size() > 0 ? factor(0) : null;
+
+			public boolean hasNext() {
+				return i < size();
+			}
+
+			public BigInteger next() {
+				if(i >= size()) throw new NoSuchElementException();
+				BigInteger p = current;
+				if(++j == exponents[i])
+				{
+					j = 0;
+					if(++i < size()) current = factor(i);
+				}
+				return p;
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Factorization)) return false;
+		Factorization f = (Factorization) o;
+		return Arrays.equals(exponents, f.exponents)
+				&& (small != null && f.small != null ? Arrays.equals(small, f.small) : Arrays.equals(bigs(), f.bigs()));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(bigs()) + Arrays.hashCode(exponents);
+	}
+
+    /**
+     * @return "p1^e1*p2*...", exponents of 1 left out; "1" for ONE
+     */
+	@Override
+	public String toString() {
+		if(size() == 0) return "1";
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < size(); i++)
+		{
+			if(i > 0) s.append('*');
+			s.append(small != null ? Long.toString(small[i]) : big[i].toString());
+			if(exponents[i] > 1) s.append('^').append(exponents[i]);
+		}
+		return s.toString();
+	}
+
+	private BigInteger[] bigs() {
+		if(big != null) return big;
+		BigInteger[] factors = new BigInteger[small.length];
+		for(int i = 0; i < small.length; i++) factors[i] = BigInteger.valueOf(small[i]);
+		return factors;
+	}
+}
@@ -0,0 +1,93 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import immutable.EmptyImList;
+import immutable.ImList;
+
+public class FactorizationTest {
+
+	@Test
+	public void ofTest() {
+		Random r = new Random(20);
+		for(int t = 0; t < 200; t++)
+		{
+			// Repeats in any order, some factors too big for a long
+			ArrayList<BigInteger> primes = new ArrayList<BigInteger>();
+			for(int i = r.nextInt(8); i > 0; i--)
+			{
+				BigInteger p = BigInteger.probablePrime(2 + r.nextInt(t % 2 == 0 ? 62 : 100), r);
+				for(int e = 1 + r.nextInt(3); e > 0; e--) primes.add(p);
+			}
+			Collections.shuffle(primes, r);
+			ImList<BigInteger> list = new EmptyImList<BigInteger>();
+			BigInteger product = BigInteger.ONE;
+			for(BigInteger p : primes)
+			{
+				list = list.add(p);
+				product = product.multiply(p);
+			}
+			Factorization f = Factorization.of(list);
+			assertEquals(product, f.product());
+			assertEquals(primes.size(), f.count());
+			Collections.sort(primes);
+			ArrayList<BigInteger> iterated = new ArrayList<BigInteger>();
+			for(BigInteger p : f) iterated.add(p);
+			assertEquals(primes, iterated);
+			assertEquals(f, Factorization.of(f.toList()));
+			assertEquals(f.hashCode(), Factorization.of(f.toList()).hashCode());
+		}
+	}
+
+	@Test
+	public void powerTest() {
+		BigInteger two = BigInteger.valueOf(2);
+		Factorization f = Factorization.ONE.times(two, 10000);
+		assertEquals(1, f.size());
+		assertEquals(10000, f.count());
+		assertEquals(BigInteger.ONE.shiftLeft(10000), f.product());
+		assertEquals("2^10000", f.toString());
+		f = f.times(BigInteger.valueOf(3), 1).times(two, 1).times(BigInteger.ONE.shiftLeft(89).subtract(BigInteger.ONE), 2);
+		assertEquals("2^10001*3*618970019642690137449562111^2", f.toString());
+		assertEquals(Arrays.asList(10001, 1, 2), Arrays.asList(f.exponent(0), f.exponent(1), f.exponent(2)));
+		assertEquals("1", Factorization.ONE.toString());
+		assertEquals(BigInteger.ONE, Factorization.ONE.product());
+	}
+
+	@Test
+	public void buildTest() {
+		BigInteger two = BigInteger.valueOf(2), three = BigInteger.valueOf(3);
+		BigInteger m89 = BigInteger.ONE.shiftLeft(89).subtract(BigInteger.ONE);
+		Factorization f = new Factorization.Builder().add(m89).add(two, 3).add(three).add(two).build();
+		assertEquals("2^4*3*618970019642690137449562111", f.toString());
+		assertEquals(new Factorization.Builder().build(), Factorization.ONE);
+		// Merging shares the factors both have, and keeps the rest in order
+		Factorization g = Factorization.ONE.times(three, 2).times(BigInteger.valueOf(5), 1);
+		assertEquals("2^4*3^3*5*618970019642690137449562111", f.times(g).toString());
+		assertEquals(f.times(g), g.times(f));
+		assertSame(f, f.times(Factorization.ONE));
+		// The factors in a range, ends included
+		assertEquals("3*618970019642690137449562111", f.between(three, m89).toString());
+		assertEquals("1", f.between(BigInteger.valueOf(4), BigInteger.valueOf(1000)).toString());
+		assertSame(f, f.between(BigInteger.ONE, m89));
+	}
+
+	@Test
+	public void verifyTest() {
+		BigInteger n = new BigInteger("1000000016000000063").multiply(BigInteger.valueOf(8));
+		Factorization partial = Factorization.ONE.times(BigInteger.valueOf(2), 3).times(BigInteger.valueOf(1000000007), 1);
+		assertEquals("2^3*1000000007*1000000009", BigMath.verify(partial, n).toString());
+		assertSame(partial, BigMath.verify(partial, n.divide(BigInteger.valueOf(1000000009))));
+		// What's left is composite, or the factors don't divide n
+		assertNull(BigMath.verify(Factorization.ONE.times(BigInteger.valueOf(2), 3), n));
+		assertNull(BigMath.verify(partial.times(BigInteger.valueOf(3), 1), n));
+	}
+}
@@ -0,0 +1,206 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Primitive long versions of the BigMath routines, for inputs that fit in 63 bits.
+ *
+ * BigMath switches to these whenever n (and therefore its range, which is capped at sqrt(n))
+ * fits in a long. Nothing in the candidate loops allocates; the only objects created are
+ * the BigIntegers for factors that are actually found.
+ */
+public class LongMath {
+
+	// Largest r such that r*r fits in a (signed) long.
+	private static final long MAX_ROOT = 3037000499L;
+
+	// Miller-Rabin with these bases is deterministic for every n < 3.3 * 10^24,
+	// so for every long.
+	private static final long[] WITNESSES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37};
+
+    /**
+     * @requires n >= 0
+     * @return largest long r such that r*r <= n
+     */
+    public static long sqrt(long n) {
+    	if(n < 0) return 0;
+    	long r = (long) Math.sqrt((double) n);
+    	if(r > MAX_ROOT) r = MAX_ROOT;
+    	// The double estimate can be off by one either way for large n; fix it up.
+    	while(r * r > n) r--;
+    	while(r < MAX_ROOT && (r + 1) * (r + 1) <= n) r++;
+    	return r;
+    }
+
+    /**
+     * @effects Returns true if n is prime, false if not.
+     * Deterministic: uses Miller-Rabin with a witness set that is exact for every long.
+     */
+    public static boolean isPrime(long n) {
+    	if(n < 2) return false;
+    	for(int i = 0; i < WITNESSES.length; i++)
+    	{
+    		if(n == WITNESSES[i]) return true;
+    		if(n % WITNESSES[i] == 0) return false;
+    	}
+    	if(n < 41 * 41) return true; // no factor <= 37 and below 41^2, so prime
+
+    	// Write n-1 as d * 2^s with d odd
+    	long d = n - 1;
+    	int s = Long.numberOfTrailingZeros(d);
+    	d >>= s;
+
+    	for(int i = 0; i < WITNESSES.length; i++)
+    	{
+    		long x = powMod(WITNESSES[i], d, n);
+    		if(x == 1 || x == n - 1) continue;
+    		boolean composite = true;
+    		for(int r = 1; r < s; r++)
+    		{
+    			x = mulMod(x, x, n);
+    			if(x == n - 1) { composite = false; break; }
+    		}
+    		if(composite) return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * @requires 0 <= a, b < m
+     * @return (a * b) mod m, without overflowing
+     */
+    static long mulMod(long a, long b, long m) {
+    	// Both fit in 31 bits: the product fits in a long.
+    	if(((a | b) >>> 31) == 0) return (a * b) % m;
+    	// Otherwise take the full 128-bit product; a, b >= 0, so the signed high half is right.
+    	return remainder(Math.multiplyHigh(a, b), a * b, m);
+    }
+
+    /**
+     * Knuth's algorithm D for one 128-bit dividend and a two-digit divisor in base 2^32
+     * (as in Hacker's Delight, divlu), keeping only the remainder.
+     * @requires 0 <= hi < m, m > 0
+     * @return (hi * 2^64 + lo) mod m, where lo is taken as unsigned
+     */
+    private static long remainder(long hi, long lo, long m) {
+    	// Shift the divisor's top bit into place, so each quotient digit is off by at most 2.
+    	int s = Long.numberOfLeadingZeros(m);	// >= 1, since m > 0
+    	m <<= s;
+    	long vn1 = m >>> 32, vn0 = m & 0xFFFFFFFFL;
+    	long un32 = (hi << s) | (lo >>> (64 - s));
+    	long un10 = lo << s;
+    	long un1 = un10 >>> 32, un0 = un10 & 0xFFFFFFFFL;
+
+    	long q1 = Long.divideUnsigned(un32, vn1);
+    	long rhat = un32 - q1 * vn1;
+    	while((q1 >>> 32) != 0 || Long.compareUnsigned(q1 * vn0, (rhat << 32) | un1) > 0)
+    	{
+    		q1--;
+    		rhat += vn1;
+    		if((rhat >>> 32) != 0) break;
+    	}
+    	long un21 = (un32 << 32) + un1 - q1 * m;
+
+    	long q0 = Long.divideUnsigned(un21, vn1);
+    	rhat = un21 - q0 * vn1;
+    	while((q0 >>> 32) != 0 || Long.compareUnsigned(q0 * vn0, (rhat << 32) | un0) > 0)
+    	{
+    		q0--;
+    		rhat += vn1;
+    		if((rhat >>> 32) != 0) break;
+    	}
+    	return ((un21 << 32) + un0 - q0 * m) >>> s;
+    }
+
+    /**
+     * @requires b >= 0, e >= 0, m >= 2
+     * @return b^e mod m
+     */
+    static long powMod(long b, long e, long m) {
+    	long result = 1;
+    	b %= m;
+    	while(e > 0)
+    	{
+    		if((e & 1) != 0) result = mulMod(result, b, m);
+    		b = mulMod(b, b, m);
+    		e >>= 1;
+    	}
+    	return result;
+    }
+
+    /**
+     * Same contract as BigMath.primesOf, for arguments BigMath has already validated.
+     *
+     * @requires 2 <= n
+     * @requires 1 <= low <= high <= sqrt(n)
+     * @effects finds all primes x such that low <= x <= high AND x divides n evenly,
+     *  with the same Trace events as BigMath.primesOf.
+     */
+    public static Factorization primesOf(long n, long low, long high) {
+    	return primesOf(n, low, high, new AtomicBoolean(), new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE);
+    }
+
+    /**
+     * Same contract as BigMath.primesOf with a stop flag, cofactor and sink,
+     * for arguments BigMath has already validated.
+     */
+    public static Factorization primesOf(long n, long low, long high,
+    		AtomicBoolean stop, AtomicReference<BigInteger> cofactor, BigMath.FactorSink sink) {
+    	Factorization.Builder result = new Factorization.Builder();
+    	BigInteger seen = null;		// last cofactor taken into account
+    	boolean stopped = false;
+    	long count = 0;
+    	long tested = 0, divisions = 0;		// since the sink last heard
+    	Trace trace = sink.trace();
+
+    	// The sieve only hands out primes, so no primality test is needed here.
+    	PrimeSieve primes = new PrimeSieve(low, high);
+    	for(long x = primes.next(); x > 0 && x <= high && n != 1; x = primes.next())
+    	{
+    		if(count++ % BigMath.SAFE_POINT == 0)
+    		{
+    			sink.progress(x);
+    			sink.tested(tested, divisions);
+    			tested = divisions = 0;
+    			trace = sink.trace();
+    			if(stop.get())
+    			{
+    				stopped = true;
+    				break;
+    			}
+    			BigInteger m = cofactor.get();
+    			if(m != null && m != seen)
+    			{
+    				seen = m;
+    				n = BigInteger.valueOf(n).gcd(m).longValue();
+    				high = Math.min(high, sqrt(n));
+    				if(x > high) break;
+    			}
+    		}
+    		tested++;
+    		divisions++;
+    		while(n % x == 0)
+    		{
+    			if(trace.on(Trace.Level.DEBUG)) trace.event(Trace.Level.DEBUG, "found", n, x);
+    			BigInteger factor = BigInteger.valueOf(x);
+    			sink.found(factor);
+    			result.add(factor);
+    			n /= x;
+    			divisions += 2;
+    		}
+    	}
+    	sink.tested(tested, divisions);
+
+    	// If n still isn't 1 after all that and we covered the full range, n is a prime too.
+    	if(!stopped && n != 1 && low == 2 && high >= sqrt(n))
+    	{
+    		BigInteger factor = BigInteger.valueOf(n);
+    		result.add(factor);
+    		if(trace.on(Trace.Level.INFO)) trace.event(Trace.Level.INFO, "cofactor", n, null);
+    		sink.found(factor);
+    	}
+    	return result.build();
+    }
+}
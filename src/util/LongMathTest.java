@@ -0,0 +1,124 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import immutable.*;
+
+public class LongMathTest {
+
+	@Test
+	public void sqrtTest() {
+		assertEquals(0, LongMath.sqrt(0));
+		assertEquals(1, LongMath.sqrt(3));
+		assertEquals(2, LongMath.sqrt(4));
+		assertEquals(3037000499L, LongMath.sqrt(Long.MAX_VALUE));
+		Random r = new Random(6005);
+		for(int i = 0; i < 10000; i++)
+		{
+			long n = r.nextLong() >>> 1;
+			assertEquals(BigMath.sqrt(BigInteger.valueOf(n)).longValue(), LongMath.sqrt(n));
+		}
+	}
+
+	@Test
+	public void isPrimeTest() {
+		assertFalse(LongMath.isPrime(1));
+		assertTrue(LongMath.isPrime(2));
+		assertFalse(LongMath.isPrime(3215031751L));         // strong pseudoprime to 2, 3, 5, 7
+		assertTrue(LongMath.isPrime(9223372036854775783L)); // largest prime below 2^63
+		Random r = new Random(6005);
+		for(int i = 0; i < 10000; i++)
+		{
+			long n = r.nextLong() >>> (1 + r.nextInt(50));
+			assertEquals(BigInteger.valueOf(n).isProbablePrime(50), LongMath.isPrime(n));
+		}
+	}
+
+	@Test
+	public void mulModTest() {
+		long big = Long.MAX_VALUE;
+		assertEquals(1, LongMath.mulMod(big - 1, big - 1, big));
+		assertEquals(0, LongMath.mulMod(0, big - 1, big));
+		Random r = new Random(6005);
+		for(int i = 0; i < 100000; i++)
+		{
+			long m = 1 + (r.nextLong() >>> (1 + r.nextInt(62)));
+			long a = (r.nextLong() >>> 1) % m, b = (r.nextLong() >>> 1) % m;
+			long expected = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).mod(BigInteger.valueOf(m)).longValue();
+			assertEquals(a + "*" + b + " mod " + m, expected, LongMath.mulMod(a, b, m));
+		}
+	}
+
+	@Test
+	public void primesOfTest() {
+		// The same factors as the BigInteger loop found.
+		assertEquals(Factorization.of(reference(18306, 1, 135)), LongMath.primesOf(18306, 1, 135));
+		assertEquals(Factorization.of(reference(18306, 2, 135)), LongMath.primesOf(18306, 2, 135));
+		assertEquals(Factorization.of(reference(1024 * 9 * 101, 5, 96)), LongMath.primesOf(1024 * 9 * 101, 5, 96));
+		Random r = new Random(6005);
+		for(int i = 0; i < 200; i++)
+		{
+			long n = 2 + (r.nextLong() >>> 40);
+			long root = LongMath.sqrt(n);
+			long low = 1 + (long) (r.nextDouble() * root);
+			long high = low + (long) (r.nextDouble() * (root - low));
+			assertEquals(Factorization.of(reference(n, low, high)), LongMath.primesOf(n, low, high));
+		}
+	}
+
+	@Test
+	public void primesOfCofactorTest() {
+		// 3 * (2^61 - 1): once the client knows the cofactor is prime, nothing is left to search.
+		long n = 3L * 2305843009213693951L;
+		AtomicReference<BigInteger> cofactor = new AtomicReference<BigInteger>(BigInteger.valueOf(2305843009213693951L));
+		Factorization found = LongMath.primesOf(n, 2, LongMath.sqrt(n), new AtomicBoolean(), cofactor, BigMath.FactorSink.NONE);
+		assertEquals("2305843009213693951", found.toString());
+
+		// The cofactor shrinks the bound but keeps every prime still to be found.
+		cofactor.set(BigInteger.valueOf(1000003L * 1000033L));
+		found = LongMath.primesOf(1000003L * 1000033L * 999983L, 1, 1100000, new AtomicBoolean(), cofactor, BigMath.FactorSink.NONE);
+		assertEquals("1000003", found.toString());
+
+		// Stopped before it starts: no factors, and n is not taken to be prime.
+		found = LongMath.primesOf(n, 2, LongMath.sqrt(n), new AtomicBoolean(true), new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE);
+		assertEquals(Factorization.ONE, found);
+	}
+
+	@Test
+	public void bigPrimesOfCofactorTest() {
+		// Above 2^63, the same through BigMath: 2^61 - 1 was found elsewhere, leaving 77.
+		BigInteger n = BigInteger.valueOf(2305843009213693951L).multiply(BigInteger.valueOf(77));
+		Factorization found = BigMath.primesOf(n, BigInteger.valueOf(2), BigMath.sqrt(n),
+				new AtomicBoolean(), new AtomicReference<BigInteger>(BigInteger.valueOf(77)), BigMath.FactorSink.NONE);
+		assertEquals("7*11", found.toString());
+	}
+
+	// The original BigInteger trial division loop from BigMath.primesOf
+	private static ImList<BigInteger> reference(long number, long lo, long hi) {
+		BigInteger n = BigInteger.valueOf(number);
+		BigInteger low = BigInteger.valueOf(lo);
+		BigInteger high = BigInteger.valueOf(hi);
+		ImList<BigInteger> result = new EmptyImList<BigInteger>();
+		for(BigInteger x = low; x.compareTo(high) <= 0; x = x.nextProbablePrime())
+		{
+			if(x.isProbablePrime(50))
+			{
+				while(n.mod(x).signum() == 0)
+				{
+					result = result.add(x);
+					n = n.divide(x);
+				}
+				if(n.equals(BigInteger.ONE)) break;
+			}
+		}
+		if(!n.equals(BigInteger.ONE) && lo == 2 && high.compareTo(BigMath.sqrt(n)) >= 0)
+			result = result.add(n);
+		return result;
+	}
+}
@@ -0,0 +1,167 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One primesOf search spread over the workers of a ForkJoinPool (see BigMath.primesOf with
+ * a pool).
+ *
+ * [low, high] is cut into up to PIECES_PER_WORKER pieces per worker. A Part covering several
+ * pieces forks its upper half and works on its lower half itself, so a worker that runs out
+ * steals the biggest half still waiting. Each piece is an ordinary primesOf over the whole
+ * of n, with its own sieve and its own factors; a Part multiplies its halves' factors
+ * together once both are done, so the searches share nothing but a stop flag.
+ * That flag is set once the factors found between them make up n, or the caller stops.
+ * Everything the pieces tell the caller's sink goes through here, one call at a time.
+ */
+final class ParallelPrimes {
+	// Fewest numbers in a piece worth a sieve and a task of its own
+	static final long MIN_PIECE = 1L << 18;
+	// Pieces per worker, so that there are pieces to steal when some go faster than others
+	private static final int PIECES_PER_WORKER = 8;
+
+	private final BigInteger n;
+	private final long low, high;
+	private final long[] bounds;		// piece i is [bounds[i], bounds[i + 1] - 1]
+	private final AtomicBoolean stop;
+	private final AtomicReference<BigInteger> cofactor;
+	private final BigMath.FactorSink sink;
+	private final AtomicBoolean halt = new AtomicBoolean();		// the pieces' stop flag
+	private final AtomicReference<BigInteger> narrowed = new AtomicReference<BigInteger>();	// their cofactor
+	// Guarded by this
+	private BigInteger left;		// n over every factor found so far
+	private final long[] at;		// where each piece has got to; Long.MAX_VALUE once it's done
+	private long reported = 0;		// the last progress passed on
+
+    /**
+     * @requires 1 <= low <= high <= min(sqrt(n), PrimeSieve.MAX_HIGH), parallelism >= 1
+     */
+	ParallelPrimes(BigInteger n, long low, long high, AtomicBoolean stop, AtomicReference<BigInteger> cofactor,
+			BigMath.FactorSink sink, int parallelism) {
+		this.n = n;
+		this.low = low;
+		this.high = high;
+		this.stop = stop;
+		this.cofactor = cofactor;
+		this.sink = sink;
+		this.left = n;
+		long span = high - low + 1;
+		int pieces = (int) Math.max(1, Math.min((long) parallelism * PIECES_PER_WORKER, span / MIN_PIECE));
+		bounds = new long[pieces + 1];
+		at = new long[pieces];
+		for(int i = 0; i <= pieces; i++)
+			bounds[i] = low + span / pieces * i + Math.min(i, span % pieces);
+		for(int i = 0; i < pieces; i++) at[i] = bounds[i];
+	}
+
+    /**
+     * @return what BigMath.primesOf(n, low, high, stop, cofactor, sink) would, searched in pool
+     */
+	Factorization run(ForkJoinPool pool) {
+		Factorization result = pool.invoke(new Part(0, at.length));
+		// If what's left has no factor up to its square root, it's prime; see BigMath.primesOf
+		BigInteger rest;
+		synchronized(this)
+		{
+			rest = left;
+		}
+		BigInteger m = cofactor.get();
+		if(m != null) rest = rest.gcd(m);
+		if(!stop.get() && low == 2 && !rest.equals(BigInteger.ONE)
+		   && BigInteger.valueOf(high).compareTo(BigMath.sqrt(rest)) >= 0)
+		{
+			result = result.times(rest, 1);
+			Trace trace = sink.trace();
+			if(trace.on(Trace.Level.INFO)) trace.event(Trace.Level.INFO, "cofactor", rest, null);
+			sink.found(rest);
+		}
+		return result;
+	}
+
+	private synchronized void found(BigInteger x) {
+		left = left.divide(x);
+		sink.found(x);
+		if(left.equals(BigInteger.ONE)) halt.set(true);
+	}
+
+	// Piece i has tried every candidate below x. Progress is the lowest any piece has got to.
+	private synchronized void reached(int i, long x) {
+		at[i] = x;
+		long lowest = Long.MAX_VALUE;
+		for(long y : at) lowest = Math.min(lowest, y);
+		if(lowest == Long.MAX_VALUE || lowest <= reported) return;
+		reported = lowest;
+		sink.progress(lowest);
+	}
+
+	private synchronized void tested(long candidates, long divisions) {
+		sink.tested(candidates, divisions);
+	}
+
+	// Pieces from up to to - 1. Never serialized: it belongs to a ParallelPrimes, which isn't.
+	@SuppressWarnings("serial")
+	private final class Part extends RecursiveTask<Factorization> {
+		private final int from, to;
+
+		Part(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected Factorization compute() {
+			if(to - from == 1) return new Piece(from).search();
+			int mid = (from + to) >>> 1;
+			Part upper = new Part(mid, to);
+			upper.fork();
+			Factorization lower = new Part(from, mid).compute();
+			return lower.times(upper.join());
+		}
+	}
+
+	// One piece's search, and what it tells the caller
+	private final class Piece implements BigMath.FactorSink {
+		private final int index;
+
+		Piece(int index) {
+			this.index = index;
+		}
+
+		Factorization search() {
+			Factorization result = Factorization.ONE;
+			if(!halt.get())
+			{
+				// Starting at 1 rather than 2 tries the same primes, but leaves deciding whether
+				// what's left is prime to run(), which knows what the other pieces found.
+				long from = bounds[index] == 2 ? 1 : bounds[index];
+				result = BigMath.primesOf(n, BigInteger.valueOf(from), BigInteger.valueOf(bounds[index + 1] - 1),
+						halt, narrowed, this);
+			}
+			reached(index, Long.MAX_VALUE);
+			return result;
+		}
+
+		public void found(BigInteger x) {
+			ParallelPrimes.this.found(x);
+		}
+
+		// Called at every safe point, just before the search looks at halt and narrowed
+		public void progress(long x) {
+			reached(index, x);
+			if(stop.get()) halt.set(true);
+			BigInteger m = cofactor.get();
+			if(m != null) narrowed.set(m);
+		}
+
+		public void tested(long candidates, long divisions) {
+			ParallelPrimes.this.tested(candidates, divisions);
+		}
+
+		public Trace trace() {
+			return sink.trace();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ParallelPrimesTest {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	@Test
+	public void sameAsSequentialTest() {
+		Random r = new Random(25);
+		for(int t = 0; t < 60; t++)
+		{
+			// Small factors, some from anywhere in the range, and a large one so that the range
+			// is long enough to split; n above and below 2^63
+			BigInteger n = BigInteger.ONE;
+			for(int i = r.nextInt(4); i > 0; i--) n = n.multiply(BigInteger.valueOf(2 + r.nextInt(50)));
+			for(int i = 1 + r.nextInt(3); i > 0; i--) n = n.multiply(BigInteger.valueOf(1000 + r.nextInt(4000000)).nextProbablePrime());
+			n = n.multiply(BigInteger.probablePrime(t % 2 == 0 ? 12 + r.nextInt(4) : 45 + r.nextInt(20), r));
+			BigInteger low = BigInteger.valueOf(t % 3 == 0 ? 1 : t % 3 == 1 ? 2 : 1 + r.nextInt(100000));
+			BigInteger high = BigInteger.valueOf(3000000 + r.nextInt(3000000));
+			ArrayList<BigInteger> heard = new ArrayList<BigInteger>();
+			BigMath.FactorSink sink = new BigMath.FactorSink() {
+				long last = 0;
+				public void found(BigInteger x) {heard.add(x);}
+				public void progress(long x)
+				{
+					assertTrue(x > last);
+					last = x;
+				}
+			};
+			Factorization parallel = BigMath.primesOf(n, low, high, new AtomicBoolean(),
+					new AtomicReference<BigInteger>(), sink, POOL);
+			assertEquals(n + " " + low + " " + high, BigMath.primesOf(n, low, high), parallel);
+			ArrayList<BigInteger> listed = new ArrayList<BigInteger>();
+			for(BigInteger x : parallel) listed.add(x);
+			Collections.sort(heard);
+			Collections.sort(listed);
+			assertEquals(listed, heard);
+		}
+	}
+
+	@Test
+	public void leftoverTest() {
+		// Factors from different pieces, and nothing left over
+		BigInteger p = BigInteger.valueOf(3000017), q = BigInteger.ONE.shiftLeft(40).nextProbablePrime();
+		BigInteger n = BigInteger.valueOf(6 * 1000003L).multiply(p);
+		BigInteger high = BigInteger.valueOf(4000000);
+		assertEquals("2*3*1000003*3000017", BigMath.primesOf(n, BigInteger.valueOf(2), high, new AtomicBoolean(),
+				new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE, POOL).toString());
+		// What's left once every piece is done has no factor up to its square root: it's prime
+		n = BigInteger.valueOf(6).multiply(q);
+		assertEquals("2*3*" + q, BigMath.primesOf(n, BigInteger.valueOf(2), high, new AtomicBoolean(),
+				new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE, POOL).toString());
+	}
+
+	@Test
+	public void haltTest() {
+		// Every factor is in the first piece; the rest of the 2^40 numbers below sqrt(n) are never searched
+		BigInteger n = BigInteger.valueOf(3).shiftLeft(80);
+		Factorization primes = BigMath.primesOf(n, BigInteger.valueOf(2), n, new AtomicBoolean(),
+				new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE, POOL);
+		assertEquals(81, primes.count());
+		assertEquals("2^80*3", primes.toString());
+	}
+
+	@Test
+	public void stopTest() {
+		// A prime's search has to cover the whole range, unless it's stopped
+		BigInteger n = new BigInteger("1000000000000000000000000000057");
+		AtomicBoolean stop = new AtomicBoolean(true);
+		Factorization primes = BigMath.primesOf(n, BigInteger.valueOf(2), n, stop,
+				new AtomicReference<BigInteger>(), BigMath.FactorSink.NONE, POOL);
+		assertEquals(Factorization.ONE, primes);
+	}
+}
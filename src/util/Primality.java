@@ -0,0 +1,155 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Primality testing for BigIntegers of any size.
+ *
+ *  - Below 2^63, LongMath.isPrime: Miller-Rabin with a fixed witness set, which is exact.
+ *  - Above that, Baillie-PSW: trial division by small primes, a strong Fermat test to base 2,
+ *    and a strong Lucas test with Selfridge's parameters. No composite is known to pass it.
+ *  - isPrimeByTrialDivision is the slow, certain answer, for when a proof is worth sqrt(n) work.
+ *
+ * details: R. Baillie and S. S. Wagstaff, "Lucas pseudoprimes", Math. Comp. 35 (1980)
+ */
+public class Primality {
+
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+	// Odd primes tried before the expensive tests.
+	private static final int[] SMALL_PRIMES = smallPrimes(1000);
+
+    /**
+     * @effects Returns true if n is prime (exactly below 2^63, by Baillie-PSW above), false if not.
+     */
+	public static boolean isPrime(BigInteger n) {
+		if(n.signum() <= 0) return false;
+		if(n.bitLength() < 64) return LongMath.isPrime(n.longValue());
+		if(!n.testBit(0)) return false;
+		for(int i = 0; i < SMALL_PRIMES.length; i++)
+			if(n.mod(BigInteger.valueOf(SMALL_PRIMES[i])).signum() == 0) return false;
+		return isStrongProbablePrime(n, TWO) && isStrongLucasProbablePrime(n);
+	}
+
+    /**
+     * Certificate mode: trial division by every prime up to sqrt(n).
+     * @requires sqrt(n) <= PrimeSieve.MAX_HIGH
+     * @effects Returns true if n is prime, false if not. Never wrong, but takes O(sqrt(n)) time.
+     */
+	public static boolean isPrimeByTrialDivision(BigInteger n) {
+		if(n.compareTo(TWO) < 0) return false;
+		BigInteger root = BigMath.sqrt(n);
+		if(root.bitLength() > 62) throw new IllegalArgumentException("too large to certify by trial division");
+		PrimeSieve primes = new PrimeSieve(2, root.longValue());
+		for(long p = primes.next(); p > 0; p = primes.next())
+			if(n.mod(BigInteger.valueOf(p)).signum() == 0) return false;
+		return true;
+	}
+
+    /**
+     * @requires n odd, n > a > 1
+     * @return true if n is a strong probable prime to base a
+     */
+	static boolean isStrongProbablePrime(BigInteger n, BigInteger a) {
+		BigInteger nMinus1 = n.subtract(BigInteger.ONE);
+		int s = nMinus1.getLowestSetBit();
+		BigInteger x = a.modPow(nMinus1.shiftRight(s), n);
+		if(x.equals(BigInteger.ONE) || x.equals(nMinus1)) return true;
+		for(int r = 1; r < s; r++)
+		{
+			x = x.multiply(x).mod(n);
+			if(x.equals(nMinus1)) return true;
+			if(x.equals(BigInteger.ONE)) return false;
+		}
+		return false;
+	}
+
+    /**
+     * Strong Lucas test with P = 1, Q = (1 - D)/4, where D is the first of 5, -7, 9, -11, ...
+     * with Jacobi symbol (D/n) = -1 (Selfridge's method A).
+     * @requires n odd, n > 3, no prime factor below 1000
+     * @return true if n is a strong Lucas probable prime
+     */
+	static boolean isStrongLucasProbablePrime(BigInteger n) {
+		// A square n would never give (D/n) = -1.
+		if(BigMath.isSquare(n)) return false;
+		long d = 5;
+		while(true)
+		{
+			int j = jacobi(BigInteger.valueOf(d).mod(n), n);
+			if(j == -1) break;
+			if(j == 0 && !BigInteger.valueOf(Math.abs(d)).equals(n)) return false;
+			d = d > 0 ? -(d + 2) : -d + 2;
+		}
+		BigInteger bigD = BigInteger.valueOf(d).mod(n);
+		BigInteger q = BigInteger.valueOf((1 - d) / 4).mod(n);
+
+		// n + 1 = k * 2^s, k odd. Compute U_k, V_k and Q^k by walking the bits of k.
+		BigInteger nPlus1 = n.add(BigInteger.ONE);
+		int s = nPlus1.getLowestSetBit();
+		BigInteger k = nPlus1.shiftRight(s);
+		BigInteger u = BigInteger.ONE;
+		BigInteger v = BigInteger.ONE;			// V_1 = P = 1
+		BigInteger qk = q;
+		for(int i = k.bitLength() - 2; i >= 0; i--)
+		{
+			// index doubles
+			u = u.multiply(v).mod(n);
+			v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+			qk = qk.multiply(qk).mod(n);
+			if(k.testBit(i))
+			{
+				// index goes up by one
+				BigInteger u1 = half(u.add(v), n);
+				v = half(bigD.multiply(u).add(v), n);
+				u = u1;
+				qk = qk.multiply(q).mod(n);
+			}
+		}
+		if(u.signum() == 0 || v.signum() == 0) return true;
+		for(int r = 1; r < s; r++)
+		{
+			v = v.multiply(v).subtract(qk.shiftLeft(1)).mod(n);
+			if(v.signum() == 0) return true;
+			qk = qk.multiply(qk).mod(n);
+		}
+		return false;
+	}
+
+	// x / 2 mod n, for odd n
+	private static BigInteger half(BigInteger x, BigInteger n) {
+		x = x.mod(n);
+		if(x.testBit(0)) x = x.add(n);
+		return x.shiftRight(1);
+	}
+
+    /**
+     * @requires n odd, n > 0, 0 <= a
+     * @return Jacobi symbol (a/n)
+     */
+	static int jacobi(BigInteger a, BigInteger n) {
+		int result = 1;
+		a = a.mod(n);
+		while(a.signum() != 0)
+		{
+			int twos = a.getLowestSetBit();
+			a = a.shiftRight(twos);
+			int n8 = n.intValue() & 7;
+			if((twos & 1) != 0 && (n8 == 3 || n8 == 5)) result = -result;
+			// reciprocity: flip if both are 3 mod 4
+			if((a.intValue() & 3) == 3 && (n8 & 3) == 3) result = -result;
+			BigInteger t = a;
+			a = n.mod(t);
+			n = t;
+		}
+		return n.equals(BigInteger.ONE) ? result : 0;
+	}
+
+	private static int[] smallPrimes(int bound) {
+		int[] result = new int[bound];
+		int count = 0;
+		PrimeSieve primes = new PrimeSieve(3, bound);
+		for(long p = primes.next(); p > 0; p = primes.next()) result[count++] = (int) p;
+		return Arrays.copyOf(result, count);
+	}
+}
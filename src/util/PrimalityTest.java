@@ -0,0 +1,46 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PrimalityTest {
+
+	@Test
+	public void agreesWithBigIntegerTest() {
+		Random r = new Random(6005);
+		for(int i = 0; i < 3000; i++)
+		{
+			BigInteger n = new BigInteger(64 + r.nextInt(200), r).setBit(0);
+			assertEquals(n.toString(), n.isProbablePrime(100), Primality.isPrime(n));
+		}
+		for(int i = 0; i < 200; i++)
+		{
+			BigInteger p = BigInteger.probablePrime(64 + r.nextInt(200), r);
+			assertTrue(Primality.isPrime(p));
+			assertFalse(Primality.isPrime(p.multiply(p)));
+			assertFalse(Primality.isPrime(p.multiply(BigInteger.probablePrime(40, r))));
+		}
+	}
+
+	@Test
+	public void lucasTest() {
+		// Strong Lucas pseudoprimes with Selfridge parameters: the test alone passes them...
+		assertTrue(Primality.isStrongLucasProbablePrime(BigInteger.valueOf(5459)));
+		assertTrue(Primality.isStrongLucasProbablePrime(BigInteger.valueOf(5777)));
+		// ... but they aren't strong pseudoprimes to base 2
+		assertFalse(Primality.isStrongProbablePrime(BigInteger.valueOf(5459), BigInteger.valueOf(2)));
+		assertEquals(-1, Primality.jacobi(BigInteger.valueOf(5), BigInteger.valueOf(7)));
+		assertEquals(0, Primality.jacobi(BigInteger.valueOf(21), BigInteger.valueOf(7)));
+	}
+
+	@Test
+	public void trialDivisionTest() {
+		assertTrue(Primality.isPrimeByTrialDivision(new BigInteger("1000000000039")));
+		assertFalse(Primality.isPrimeByTrialDivision(new BigInteger("1000000016000000063")));
+		assertFalse(Primality.isPrimeByTrialDivision(BigInteger.ONE));
+	}
+}
@@ -0,0 +1,151 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Segmented Sieve of Eratosthenes over an arbitrary range [low, high].
+ *
+ * Primes come out one at a time, in increasing order, from next().
+ * Only odd numbers are stored, one bit each, and the range is sieved one
+ * cache-sized segment at a time, so memory does not depend on the width of the range.
+ * The base primes up to sqrt(high) are pulled lazily, as segments need them,
+ * from a smaller PrimeSieve over [3, sqrt(high)]. They are capped at MAX_BASE_PRIME
+ * (about 4 MB of ints); above MAX_BASE_PRIME^2 = 2^48 the few numbers that survive
+ * the sieve are confirmed with LongMath.isPrime before being returned.
+ * If a PrimeTable is installed and the whole range is inside it, primes are read from
+ * the table instead, and nothing is sieved.
+ *
+ * Typical use:
+ *     PrimeSieve primes = new PrimeSieve(low, high);
+ *     for(long p = primes.next(); p > 0; p = primes.next()) { ... }
+ */
+public class PrimeSieve {
+
+	// One segment is 32 KB of bits (fits in L1 on most machines), covering 2^19 integers.
+	private static final int SEGMENT_WORDS = 4096;
+	private static final int SEGMENT_BITS  = SEGMENT_WORDS * 64;
+
+	/** Largest high a PrimeSieve accepts. */
+	public static final long MAX_HIGH = (1L << 62) - 1;
+
+	// Largest base prime kept in memory. The sieve alone is exact up to its square.
+	private static final long MAX_BASE_PRIME = 1L << 24;
+	private static final long MAX_EXACT = MAX_BASE_PRIME * MAX_BASE_PRIME;
+
+	private final long high;
+	private boolean two;           // 2 is in range and hasn't been returned yet
+	private long nextLow;          // first odd number of the next segment
+	private final PrimeTable table;    // or null, to sieve
+
+	private final long[] bits;     // bit i set -> segLow + 2i is composite
+	private long segLow;
+	private int segCount;          // number of odd numbers in the current segment
+	private int index;             // next bit to examine in the current segment
+
+	private int[] basePrimes = new int[16];
+	private int baseCount = 0;
+	private long baseLimit = 2;    // every odd prime <= baseLimit is in basePrimes
+	private PrimeSieve base = null;
+
+    /**
+     * @requires 0 <= low, high <= MAX_HIGH
+     * @effects creates a sieve that will return every prime p with low <= p <= high.
+     *  If low > high the sieve is empty.
+     */
+	public PrimeSieve(long low, long high) {
+		if(low < 0 || high > MAX_HIGH) throw new IllegalArgumentException("PrimeSieve(" + low + ", " + high + ")");
+		this.high = high;
+		this.two = low <= 2 && 2 <= high;
+		this.nextLow = Math.max(low, 3) | 1;
+		PrimeTable installed = PrimeTable.installed();
+		this.table = installed != null && high <= installed.bound() ? installed : null;
+		long odds = high >= nextLow && table == null ? (high - nextLow) / 2 + 1 : 0;
+		// Small ranges don't need a whole segment's worth of bits.
+		this.bits = new long[(int) Math.min(SEGMENT_WORDS, (odds + 63) / 64)];
+		this.segCount = 0;
+		this.index = 0;
+	}
+
+    /**
+     * @return the next prime in the range, or -1 if there are no more.
+     */
+	public long next() {
+		if(two)
+		{
+			two = false;
+			return 2;
+		}
+		if(table != null)
+		{
+			long p = table.next(nextLow, high);
+			nextLow = p > 0 ? p + 2 : high + 1;
+			return p;
+		}
+		while(true)
+		{
+			while(index < segCount)
+			{
+				int w = index >>> 6;
+				long free = ~bits[w] & (-1L << (index & 63));
+				if(free != 0)
+				{
+					int b = (w << 6) + Long.numberOfTrailingZeros(free);
+					if(b >= segCount) break;
+					index = b + 1;
+					long p = segLow + 2L * b;
+					if(p < MAX_EXACT || LongMath.isPrime(p)) return p;
+					continue;
+				}
+				index = (w + 1) << 6;
+			}
+			if(nextLow > high) return -1;
+			sieveSegment();
+		}
+	}
+
+	// Sieve the odd numbers [nextLow, min(high, nextLow + 2*SEGMENT_BITS - 2)].
+	private void sieveSegment() {
+		segLow = nextLow;
+		segCount = (int) Math.min(SEGMENT_BITS, (high - segLow) / 2 + 1);
+		long segHigh = segLow + 2L * (segCount - 1);
+		nextLow = segHigh + 2;
+		index = 0;
+
+		int words = (segCount + 63) >>> 6;
+		for(int i = 0; i < words; i++) bits[i] = 0;
+
+		extendBasePrimes(Math.min(LongMath.sqrt(segHigh), MAX_BASE_PRIME));
+		for(int i = 0; i < baseCount; i++)
+		{
+			long p = basePrimes[i];
+			long square = p * p;
+			if(square > segHigh) break;
+			// First odd multiple of p in the segment, but never below p*p
+			// (smaller multiples have a smaller prime factor, and p itself must survive).
+			long first = (segLow + p - 1) / p * p;
+			if((first & 1) == 0) first += p;
+			if(first < square) first = square;
+			for(long j = (first - segLow) >>> 1; j < segCount; j += p)
+				bits[(int) (j >>> 6)] |= 1L << j;
+		}
+	}
+
+	// Make sure basePrimes holds every odd prime <= limit.
+	private void extendBasePrimes(long limit) {
+		if(limit <= baseLimit) return;
+		if(base == null) base = new PrimeSieve(3, Math.min(LongMath.sqrt(high), MAX_BASE_PRIME));
+		while(baseLimit < limit)
+		{
+			long p = base.next();
+			if(p < 0)
+			{
+				baseLimit = Long.MAX_VALUE;
+				break;
+			}
+			if(baseCount == basePrimes.length)
+				basePrimes = Arrays.copyOf(basePrimes, baseCount * 2);
+			basePrimes[baseCount++] = (int) p;
+			baseLimit = p;
+		}
+	}
+}
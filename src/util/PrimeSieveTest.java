@@ -0,0 +1,43 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+public class PrimeSieveTest {
+
+	@Test
+	public void smallRangeTest() {
+		assertRange(0, 100);
+		assertRange(2, 2);
+		assertRange(4, 4);
+		assertRange(90, 96);
+		assertEquals(-1, new PrimeSieve(10, 5).next());
+	}
+
+	@Test
+	public void segmentBoundaryTest() {
+		// More than one 2^19-wide segment, starting and ending mid-segment
+		assertRange(1000001, 2200001);
+	}
+
+	@Test
+	public void largeRangeTest() {
+		long low = PrimeSieve.MAX_HIGH - 20000;
+		assertRange(low, PrimeSieve.MAX_HIGH);
+	}
+
+	// Every prime in [low, high] comes out, in order, and nothing else does.
+	private static void assertRange(long low, long high) {
+		PrimeSieve primes = new PrimeSieve(low, high);
+		BigInteger x = BigInteger.valueOf(Math.max(low, 2) - 1).nextProbablePrime();
+		for(long p = primes.next(); p > 0; p = primes.next())
+		{
+			assertEquals(x.longValue(), p);
+			x = x.nextProbablePrime();
+		}
+		assertTrue(x.compareTo(BigInteger.valueOf(high)) > 0);
+	}
+}
@@ -0,0 +1,172 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Every prime up to some bound, read from a file that is memory-mapped read-only.
+ *
+ * The file holds one bit per odd number, bit k set when 2k+1 is prime, in little-endian
+ * 64-bit words after a 16-byte header (magic, version, bound). Up to 2^32, enough to trial
+ * divide any long, it takes 256 MB. Built once with
+ *     java util.PrimeTable FILE [BOUND]
+ * it is then shared by every process that maps it: the pages live in the OS page cache,
+ * once per machine, and cost nothing on any JVM's heap.
+ *
+ * Once a table is installed, every PrimeSieve whose range is inside it reads its primes
+ * from the table instead of sieving them (so BigMath.primesOf, and everything else that
+ * walks primes, does too).
+ */
+public class PrimeTable {
+
+	private static final int MAGIC = 0x5054424c;	// "PTBL"
+	private static final int VERSION = 1;
+	private static final int HEADER = 16;			// magic, version, bound
+
+	/** Bound the tool builds to unless told otherwise: enough for every long's square root. */
+	public static final long DEFAULT_BOUND = 1L << 32;
+
+	/** Largest bound a table can have: its bits must fit in one mapping, under 2 GB. */
+	public static final long MAX_BOUND = 1L << 34;
+
+	private static volatile PrimeTable installed = null;
+
+	private final long bound;
+	private final LongBuffer words;
+
+	private PrimeTable(long bound, LongBuffer words) {
+		this.bound = bound;
+		this.words = words;
+	}
+
+    /**
+     * Maps a table file built by build() or main().
+     * @throws IOException if file can't be read, or isn't a prime table
+     */
+	public static PrimeTable open(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			long bound = header.getLong(8);
+			if(header.position() < HEADER || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+					|| bound < 1 || bound > MAX_BOUND || channel.size() != HEADER + 8 * words(bound))
+				throw new IOException(file + " is not a prime table");
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, channel.size() - HEADER);
+			return new PrimeTable(bound, map.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+		}
+	}
+
+    /**
+     * @effects from now on, every new PrimeSieve whose range is inside table reads it from
+     *  table; null goes back to sieving everything
+     */
+	public static void install(PrimeTable table) {
+		installed = table;
+	}
+
+    /**
+     * @return the installed table, or null
+     */
+	public static PrimeTable installed() {
+		return installed;
+	}
+
+    /**
+     * @return the largest number the table knows about
+     */
+	public long bound() {
+		return bound;
+	}
+
+    /**
+     * @requires 0 <= from
+     * @return the least prime p with from <= p <= min(high, bound()), or -1 if there is none
+     */
+	public long next(long from, long high) {
+		high = Math.min(high, bound);
+		if(from <= 2) return high >= 2 ? 2 : -1;
+		if(from > high) return -1;
+		long k = (from | 1) >>> 1;		// 2k+1 is the first odd number >= from
+		long last = (high - 1) >>> 1;
+		int w = (int) (k >>> 6);
+		long word = words.get(w) & (-1L << k);
+		while(word == 0)
+		{
+			if(++w > (int) (last >>> 6)) return -1;
+			word = words.get(w);
+		}
+		long b = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+		return b <= last ? 2 * b + 1 : -1;
+	}
+
+    /**
+     * @requires 1 <= bound <= MAX_BOUND
+     * @effects writes a table of every prime up to bound to file, replacing it whole
+     *  (a process mapping the old file keeps seeing the old one)
+     */
+	public static void build(Path file, long bound) throws IOException {
+		if(bound < 1 || bound > MAX_BOUND) throw new IllegalArgumentException("bound " + bound);
+		Path fresh = file.resolveSibling(file.getFileName() + ".new");
+		try(FileChannel out = FileChannel.open(fresh, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(bound);
+			long total = words(bound);
+			long w = 0, word = 0;
+			PrimeSieve primes = new PrimeSieve(3, bound);
+			for(long p = primes.next(); ; p = primes.next())
+			{
+				long k = p > 0 ? p >>> 1 : total << 6;	// at the end, flush every word that's left
+				for(; w < k >>> 6 && w < total; w++, word = 0)
+				{
+					if(!buffer.hasRemaining()) drain(buffer, out);
+					buffer.putLong(word);
+				}
+				if(p < 0) break;
+				word |= 1L << k;
+			}
+			drain(buffer, out);
+			out.force(true);
+		}
+		Files.move(fresh, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+    /**
+     * Builds a table file.
+     * @param args the file, and optionally the bound (default DEFAULT_BOUND)
+     */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1 || args.length > 2)
+		{
+			System.err.println("Usage: java util.PrimeTable FILE [BOUND]");
+			return;
+		}
+		long bound = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_BOUND;
+		long start = System.currentTimeMillis();
+		build(Path.of(args[0]), bound);
+		System.err.println("Wrote every prime up to " + bound + " to " + args[0] + " in "
+				+ (System.currentTimeMillis() - start) / 1000.0 + " s");
+	}
+
+	// Words of bits a table up to bound takes
+	private static long words(long bound) {
+		return (((bound - 1) >>> 1) >>> 6) + 1;
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel out) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) out.write(buffer);
+		buffer.clear();
+	}
+}
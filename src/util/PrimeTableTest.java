@@ -0,0 +1,71 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class PrimeTableTest {
+
+	@Test
+	public void tableTest() throws IOException {
+		Path file = Files.createTempFile("primes", ".tbl");
+		PrimeTable.build(file, 3000017);
+		PrimeTable table = PrimeTable.open(file);
+		assertEquals(3000017, table.bound());
+		// Every prime, in order, from anywhere, up to the bound and no further
+		PrimeSieve primes = new PrimeSieve(0, 3000017);
+		long from = 0;
+		for(long p = primes.next(); p > 0; p = primes.next())
+		{
+			assertEquals(p, table.next(from, Long.MAX_VALUE));
+			assertEquals(p, table.next(p, p));
+			from = p + 1;
+		}
+		assertEquals(-1, table.next(from, Long.MAX_VALUE));
+		assertEquals(-1, table.next(24, 28));
+		assertEquals(-1, table.next(0, 1));
+	}
+
+	@Test
+	public void installedTest() throws IOException {
+		Path file = Files.createTempFile("primes", ".tbl");
+		PrimeTable.build(file, 1 << 22);
+		PrimeTable.install(PrimeTable.open(file));
+		try
+		{
+			// Sieves inside the table read from it, and ones past it still sieve
+			assertRange(0, 1000);
+			assertRange(4000001, 1 << 22);
+			assertRange((1 << 22) - 1000, (1 << 22) + 1000);
+			BigInteger n = new BigInteger("1000000016000000063").multiply(BigInteger.valueOf(4194301));	// 4194301 is prime
+			assertEquals("4194301", BigMath.primesOf(n, BigInteger.valueOf(4000000), BigInteger.valueOf(1 << 22)).toString());
+		}
+		finally
+		{
+			PrimeTable.install(null);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void notATableTest() throws IOException {
+		Path file = Files.createTempFile("primes", ".tbl");
+		Files.write(file, new byte[100]);
+		PrimeTable.open(file);
+	}
+
+	private static void assertRange(long low, long high) {
+		PrimeSieve primes = new PrimeSieve(low, high);
+		BigInteger x = BigInteger.valueOf(Math.max(low, 2) - 1).nextProbablePrime();
+		for(long p = primes.next(); p > 0; p = primes.next())
+		{
+			assertEquals(x.longValue(), p);
+			x = x.nextProbablePrime();
+		}
+		assertTrue(x.compareTo(BigInteger.valueOf(high)) > 0);
+	}
+}
@@ -0,0 +1,575 @@
+package util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Self-initializing quadratic sieve.
+ *
+ * The work splits into two halves that can run in different processes:
+ *
+ *  - sieve(index, sink, stop) sieves every polynomial belonging to one value of 'a'.
+ *    The a's are numbered, and the one with a given index is picked by that index alone,
+ *    so each PrimeFactorsServer can be handed its own range of indices.
+ *    Every relation found goes to the sink as (y, primes) with y^2 - n = product of primes.
+ *
+ *  - addRelation(y, primes) collects relations (checking each one, and pairing up partial
+ *    relations that share a large prime), and solve() does the linear algebra over GF(2)
+ *    and the square root step once relations() reaches relationsNeeded().
+ *
+ * Both halves build the same factor base from n, so primes are all they need to exchange.
+ * factor(n) runs both halves in this process.
+ *
+ * details: S. Contini, "Factoring integers with the self-initializing quadratic sieve" (1997)
+ */
+public class Siqs {
+
+	/**
+	 * Receives relations as sieve() finds them.
+	 */
+	public interface Sink {
+		/**
+		 * @param y with y^2 - n equal to the product of primes
+		 * @param primes -1 for a negative value, then prime factors with repetition
+		 *  (at most one of them outside the factor base)
+		 */
+		void relation(BigInteger y, long[] primes);
+	}
+
+	// Parameters by size of n: decimal digits, factor base size, sieve half-width M
+	private static final int[][] PARAMS = {
+		{ 30,   200,  32768 },
+		{ 40,   500,  32768 },
+		{ 50,  1200,  65536 },
+		{ 60,  2500,  65536 },
+		{ 70,  5000, 131072 },
+		{ 80,  9000, 196608 },
+		{ 90, 15000, 262144 },
+		{100, 25000, 327680 },
+	};
+	// Primes below this aren't sieved; the threshold allows for what they'd have added.
+	private static final int MIN_SIEVED = 40;
+	private static final int SMALL_FUDGE = 6;
+	// Partial relations may have one large prime up to this times the largest factor base prime.
+	private static final int LARGE_MULTIPLIER = 64;
+	// Relations beyond the factor base size to collect before solving.
+	private static final int EXTRA_RELATIONS = 64;
+
+	private final BigInteger n;
+	private final int[] primes;			// factor base; primes[0] = -1 stands for the sign, primes[1] = 2
+	private final int[] roots;			// sqrt(n) mod primes[i]
+	private final byte[] logs;			// round(log2(primes[i]))
+	private final int firstSieved;		// first index with primes[i] >= MIN_SIEVED
+	private final int m;				// sieve over x in [-m, m)
+	private final long largeBound;
+	private final int threshold;
+	private final BigInteger targetA;	// ideal a = sqrt(2n) / m
+	private final int s;				// number of factor base primes in each a
+	private BigInteger smallFactor = null;
+
+	private final ArrayList<Relation> relations = new ArrayList<Relation>();
+	private final HashMap<Long, Relation> partials = new HashMap<Long, Relation>();
+	private final HashSet<BigInteger> seen = new HashSet<BigInteger>();
+	private int needed;
+
+	// One relation: y^2 = (product of primes[f] for f in factors) * large^2 (mod n)
+	private static class Relation {
+		final BigInteger y;
+		final int[] factors;		// factor base indices, with repetition
+		final BigInteger large;		// ONE for full relations
+
+		Relation(BigInteger y, int[] factors, BigInteger large) {
+			this.y = y;
+			this.factors = factors;
+			this.large = large;
+		}
+	}
+
+    /**
+     * Builds the factor base and sieve parameters for n.
+     * @requires n odd, composite, and not a perfect power
+     */
+	public Siqs(BigInteger n) {
+		this.n = n;
+		int digits = n.toString().length();
+		int[] row = PARAMS[PARAMS.length - 1];
+		for(int i = 0; i < PARAMS.length; i++)
+			if(digits <= PARAMS[i][0]) { row = PARAMS[i]; break; }
+		int size = row[1];
+		this.m = row[2];
+
+		// Factor base: -1, 2, then the odd primes p with n a square mod p
+		primes = new int[size];
+		roots = new int[size];
+		logs = new byte[size];
+		primes[0] = -1;
+		primes[1] = 2;
+		roots[1] = n.testBit(0) ? 1 : 0;
+		logs[1] = 1;
+		int count = 2;
+		PrimeSieve sieve = new PrimeSieve(3, Integer.MAX_VALUE);
+		while(count < size)
+		{
+			int p = (int) sieve.next();
+			int r = n.mod(BigInteger.valueOf(p)).intValue();
+			if(r == 0)
+			{
+				if(smallFactor == null && !n.equals(BigInteger.valueOf(p))) smallFactor = BigInteger.valueOf(p);
+				continue;
+			}
+			if(LongMath.powMod(r, (p - 1) / 2, p) != 1) continue;
+			primes[count] = p;
+			roots[count] = sqrtMod(r, p);
+			logs[count] = (byte) Math.round(Math.log(p) / Math.log(2));
+			count++;
+		}
+		int first = 2;
+		while(first < size && primes[first] < MIN_SIEVED) first++;
+		firstSieved = first;
+
+		int pmax = primes[size - 1];
+		largeBound = (long) pmax * LARGE_MULTIPLIER;
+		targetA = BigMath.sqrt(n.shiftLeft(1)).divide(BigInteger.valueOf(m));
+		// Largest value sieved is about m * sqrt(n/2); let through anything within a large prime of smooth.
+		double logg = Math.log(m) / Math.log(2) + n.bitLength() / 2.0 - 0.5;
+		threshold = (int) (logg - Math.log(largeBound) / Math.log(2) - SMALL_FUDGE);
+		// Aim for primes of about 11 bits in a, but stay inside the factor base.
+		int aBits = targetA.bitLength();
+		int parts = Math.max(2, Math.round(aBits / 11f));
+		while(parts > 2 && aBits / parts > Math.log(pmax) / Math.log(2)) parts--;
+		while(aBits / parts > Math.log(pmax) / Math.log(2) - 1) parts++;
+		s = parts;
+		needed = size + EXTRA_RELATIONS;
+	}
+
+    /**
+     * @return a factor base prime that divides n, if building the factor base ran into one
+     *  (in which case there is no point in sieving); otherwise null
+     */
+	public BigInteger smallFactor() {
+		return smallFactor;
+	}
+
+    /**
+     * @return number of relations (full, or two partials combined) collected so far
+     */
+	public int relations() {
+		return relations.size();
+	}
+
+    /**
+     * @return number of relations solve() wants
+     */
+	public int relationsNeeded() {
+		return needed;
+	}
+
+    /**
+     * Sieves all 2^(s-1) polynomials (a x + b)^2 - n whose a is numbered index.
+     * @param stop checked between polynomials; set it to give up early
+     */
+	public void sieve(long index, Sink sink, AtomicBoolean stop) {
+		int size = primes.length;
+		// Pick a: s-1 random factor base primes near the ideal size, and one more to get close to targetA
+		Random rnd = new Random(index * 0x9E3779B97F4A7C15L + n.hashCode());
+		int[] q = chooseA(rnd);
+		BigInteger a = BigInteger.ONE;
+		for(int i = 0; i < s; i++) a = a.multiply(BigInteger.valueOf(primes[q[i]]));
+
+		// B_l = (a/q_l) * (sqrt(n) * (a/q_l)^-1 mod q_l), so that b = sum(+-B_l) has b^2 = n mod a
+		BigInteger[] bl = new BigInteger[s];
+		BigInteger b = BigInteger.ZERO;
+		for(int l = 0; l < s; l++)
+		{
+			int p = primes[q[l]];
+			BigInteger aq = a.divide(BigInteger.valueOf(p));
+			long gamma = (long) roots[q[l]] * LongMath.powMod(aq.mod(BigInteger.valueOf(p)).longValue(), p - 2, p) % p;
+			if(gamma > p / 2) gamma = p - gamma;
+			bl[l] = aq.multiply(BigInteger.valueOf(gamma));
+			b = b.add(bl[l]);
+		}
+
+		// Roots of each polynomial mod p, and how they move when b moves by 2 B_l
+		boolean[] inA = new boolean[size];
+		for(int l = 0; l < s; l++) inA[q[l]] = true;
+		int[] root1 = new int[size];
+		int[] root2 = new int[size];
+		int[][] delta = new int[s][size];
+		for(int i = firstSieved; i < size; i++)
+		{
+			if(inA[i]) continue;
+			long p = primes[i];
+			long ainv = LongMath.powMod(a.mod(BigInteger.valueOf(p)).longValue(), p - 2, p);
+			long bm = b.mod(BigInteger.valueOf(p)).longValue();
+			root1[i] = (int) (ainv * ((roots[i] - bm + p) % p) % p);
+			root2[i] = (int) (ainv * ((2 * p - roots[i] - bm) % p) % p);
+			for(int l = 0; l < s; l++)
+				delta[l][i] = (int) (2 * ainv % p * bl[l].mod(BigInteger.valueOf(p)).longValue() % p);
+		}
+
+		byte[] sieve = new byte[2 * m];
+		int polys = 1 << (s - 1);
+		for(int poly = 0; poly < polys && !stop.get(); poly++)
+		{
+			if(poly > 0)
+			{
+				// Gray code step: flip the sign of B_l and move the roots to match
+				int l = Integer.numberOfTrailingZeros(poly);
+				boolean minus = ((((poly >>> l) + 1) >>> 1) & 1) != 0;
+				b = minus ? b.subtract(bl[l].shiftLeft(1)) : b.add(bl[l].shiftLeft(1));
+				int[] d = delta[l];
+				for(int i = firstSieved; i < size; i++)
+				{
+					if(inA[i]) continue;
+					int p = primes[i];
+					if(minus)
+					{
+						root1[i] = (root1[i] + d[i]) % p;
+						root2[i] = (root2[i] + d[i]) % p;
+					}
+					else
+					{
+						root1[i] = (root1[i] - d[i] + p) % p;
+						root2[i] = (root2[i] - d[i] + p) % p;
+					}
+				}
+			}
+			BigInteger c = b.multiply(b).subtract(n).divide(a);
+
+			Arrays.fill(sieve, (byte) 0);
+			for(int i = firstSieved; i < size; i++)
+			{
+				if(inA[i]) continue;
+				int p = primes[i];
+				byte lp = logs[i];
+				int start = (int) ((root1[i] + (long) m) % p);
+				for(int j = start; j < sieve.length; j += p) sieve[j] += lp;
+				if(root2[i] == root1[i]) continue;
+				start = (int) ((root2[i] + (long) m) % p);
+				for(int j = start; j < sieve.length; j += p) sieve[j] += lp;
+			}
+
+			for(int j = 0; j < sieve.length; j++)
+			{
+				if((sieve[j] & 0xff) < threshold) continue;
+				long x = j - m;
+				long[] found = trialDivide(a, b, c, x, q, inA, root1, root2);
+				if(found != null) sink.relation(a.multiply(BigInteger.valueOf(x)).add(b), found);
+			}
+		}
+	}
+
+	// Factor a * (a x^2 + 2 b x + c) = (a x + b)^2 - n over the factor base, plus at most one large prime.
+	// Returns the primes, or null if it doesn't factor.
+	private long[] trialDivide(BigInteger a, BigInteger b, BigInteger c, long x, int[] q,
+			boolean[] inA, int[] root1, int[] root2) {
+		BigInteger bx = BigInteger.valueOf(x);
+		BigInteger v = a.multiply(bx).add(b.shiftLeft(1)).multiply(bx).add(c);
+		long[] out = new long[64];
+		int count = 0;
+		if(v.signum() == 0) return null;
+		if(v.signum() < 0)
+		{
+			out[count++] = -1;
+			v = v.negate();
+		}
+		for(int l = 0; l < s; l++) out[count++] = primes[q[l]];
+		int twos = v.getLowestSetBit();
+		for(int t = 0; t < twos; t++)
+		{
+			if(count == out.length) out = Arrays.copyOf(out, count * 2);
+			out[count++] = 2;
+		}
+		v = v.shiftRight(twos);
+		for(int i = 2; i < primes.length; i++)
+		{
+			int p = primes[i];
+			boolean divides;
+			if(inA[i] || i < firstSieved)
+			{
+				divides = v.mod(BigInteger.valueOf(p)).signum() == 0;
+			}
+			else
+			{
+				int xm = (int) (((x % p) + p) % p);
+				divides = xm == root1[i] || xm == root2[i];
+			}
+			if(!divides) continue;
+			BigInteger bp = BigInteger.valueOf(p);
+			BigInteger[] qr = v.divideAndRemainder(bp);
+			while(qr[1].signum() == 0)
+			{
+				if(count == out.length) out = Arrays.copyOf(out, count * 2);
+				out[count++] = p;
+				v = qr[0];
+				qr = v.divideAndRemainder(bp);
+			}
+		}
+		if(!v.equals(BigInteger.ONE))
+		{
+			if(v.bitLength() > 62 || v.longValue() > largeBound) return null;
+			if(count == out.length) out = Arrays.copyOf(out, count + 1);
+			out[count++] = v.longValue();
+		}
+		return Arrays.copyOf(out, count);
+	}
+
+	// Factor base indices of the primes making up a
+	private int[] chooseA(Random rnd) {
+		int size = primes.length;
+		double ideal = Math.exp(Math.log(targetA.doubleValue()) / s);
+		int centre = firstSieved;
+		while(centre < size - 1 && primes[centre] < ideal) centre++;
+		int lo = Math.max(firstSieved, centre - 30);
+		int hi = Math.min(size - 1, centre + 30);
+		while(hi - lo < 2 * s && (lo > firstSieved || hi < size - 1))
+		{
+			lo = Math.max(firstSieved, lo - 1);
+			hi = Math.min(size - 1, hi + 1);
+		}
+		int[] q = new int[s];
+		BigInteger prod = BigInteger.ONE;
+		for(int l = 0; l < s - 1; l++)
+		{
+			int pick;
+			do
+			{
+				pick = lo + rnd.nextInt(hi - lo + 1);
+			}while(contains(q, l, pick));
+			q[l] = pick;
+			prod = prod.multiply(BigInteger.valueOf(primes[pick]));
+		}
+		// Last prime: the one that brings a closest to targetA
+		double want = targetA.doubleValue() / prod.doubleValue();
+		int best = -1;
+		for(int i = firstSieved; i < size; i++)
+		{
+			if(contains(q, s - 1, i)) continue;
+			if(best < 0 || Math.abs(primes[i] - want) < Math.abs(primes[best] - want)) best = i;
+		}
+		q[s - 1] = best;
+		return q;
+	}
+
+	private static boolean contains(int[] a, int length, int x) {
+		for(int i = 0; i < length; i++) if(a[i] == x) return true;
+		return false;
+	}
+
+    /**
+     * Checks a relation from sieve() and adds it. Partial relations are held until another
+     * one with the same large prime turns up; the pair then counts as one relation.
+     * @return false if the relation is wrong (or a duplicate) and was not added
+     */
+	public boolean addRelation(BigInteger y, long[] factors) {
+		BigInteger product = BigInteger.ONE;
+		for(int i = 0; i < factors.length; i++) product = product.multiply(BigInteger.valueOf(factors[i]));
+		if(!product.equals(y.multiply(y).subtract(n))) return false;
+		if(!seen.add(y.abs())) return false;
+
+		int[] indices = new int[factors.length];
+		int count = 0;
+		long large = 1;
+		for(int i = 0; i < factors.length; i++)
+		{
+			int at = factors[i] <= Integer.MAX_VALUE ? Arrays.binarySearch(primes, 1, primes.length, (int) factors[i]) : -1;
+			if(factors[i] == -1) indices[count++] = 0;
+			else if(at > 0) indices[count++] = at;
+			else if(large == 1) large = factors[i];
+			else return false;		// only one large prime allowed
+		}
+		indices = Arrays.copyOf(indices, count);
+		if(large == 1)
+		{
+			relations.add(new Relation(y, indices, BigInteger.ONE));
+			return true;
+		}
+		Relation other = partials.get(large);
+		if(other == null)
+		{
+			partials.put(large, new Relation(y, indices, BigInteger.ONE));
+			return true;
+		}
+		// y1^2 y2^2 = (product of both) * large^2
+		int[] both = Arrays.copyOf(other.factors, other.factors.length + count);
+		System.arraycopy(indices, 0, both, other.factors.length, count);
+		relations.add(new Relation(y.multiply(other.y).mod(n), both, BigInteger.valueOf(large)));
+		return true;
+	}
+
+    /**
+     * Finds dependencies among the relations by Gaussian elimination over GF(2), after
+     * pruning relations whose primes appear nowhere else (they can't be in any dependency),
+     * and tries each dependency's congruence of squares until one splits n.
+     * If none does, relationsNeeded() goes up so the caller knows to collect more.
+     * @return a nontrivial factor of n, or null
+     */
+	public BigInteger solve() {
+		int size = primes.length;
+		int rels = relations.size();
+		// Structured pass: drop relations holding a prime that occurs an odd number of times in
+		// no other relation, until every remaining column has company.
+		boolean[] alive = new boolean[rels];
+		Arrays.fill(alive, true);
+		int[] weight = new int[size];
+		int[][] odd = new int[rels][];		// factor base indices with an odd exponent, per relation
+		for(int r = 0; r < rels; r++)
+		{
+			int[] f = relations.get(r).factors.clone();
+			Arrays.sort(f);
+			int count = 0;
+			for(int i = 0; i < f.length; )
+			{
+				int j = i;
+				while(j < f.length && f[j] == f[i]) j++;
+				if(((j - i) & 1) != 0) f[count++] = f[i];
+				i = j;
+			}
+			odd[r] = Arrays.copyOf(f, count);
+			for(int i : odd[r]) weight[i]++;
+		}
+		boolean changed = true;
+		while(changed)
+		{
+			changed = false;
+			for(int r = 0; r < rels; r++)
+			{
+				if(!alive[r]) continue;
+				for(int i : odd[r])
+				{
+					if(weight[i] == 1)
+					{
+						alive[r] = false;
+						for(int k : odd[r]) weight[k]--;
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		int[] cols = new int[rels];
+		int ncols = 0;
+		for(int r = 0; r < rels; r++) if(alive[r]) cols[ncols++] = r;
+
+		// Matrix: one row per prime, one bit per surviving relation
+		int words = (ncols + 63) >>> 6;
+		long[][] rows = new long[size][words];
+		for(int c = 0; c < ncols; c++)
+			for(int i : odd[cols[c]])
+				rows[i][c >>> 6] |= 1L << c;
+
+		// Reduced row echelon form
+		int[] pivotRow = new int[ncols];
+		Arrays.fill(pivotRow, -1);
+		int rank = 0;
+		for(int c = 0; c < ncols && rank < size; c++)
+		{
+			int w = c >>> 6;
+			long bit = 1L << c;
+			int found = -1;
+			for(int i = rank; i < size; i++) if((rows[i][w] & bit) != 0) { found = i; break; }
+			if(found < 0) continue;
+			long[] t = rows[found]; rows[found] = rows[rank]; rows[rank] = t;
+			for(int i = 0; i < size; i++)
+			{
+				if(i == rank || (rows[i][w] & bit) == 0) continue;
+				long[] ri = rows[i];
+				for(int k = w; k < words; k++) ri[k] ^= t[k];
+			}
+			pivotRow[c] = rank++;
+		}
+
+		// Each free column gives a dependency: itself plus every pivot column whose row has its bit.
+		for(int free = 0; free < ncols; free++)
+		{
+			if(pivotRow[free] >= 0) continue;
+			ArrayList<Relation> dependency = new ArrayList<Relation>();
+			dependency.add(relations.get(cols[free]));
+			int w = free >>> 6;
+			long bit = 1L << free;
+			for(int c = 0; c < ncols; c++)
+				if(pivotRow[c] >= 0 && (rows[pivotRow[c]][w] & bit) != 0) dependency.add(relations.get(cols[c]));
+			BigInteger d = squareRoot(dependency);
+			if(d != null) return d;
+		}
+		needed += needed / 10;
+		return null;
+	}
+
+	// gcd(X - Y, n) for X = product of y's, Y = sqrt of the product of the values
+	private BigInteger squareRoot(ArrayList<Relation> dependency) {
+		int[] exponents = new int[primes.length];
+		BigInteger x = BigInteger.ONE;
+		BigInteger y = BigInteger.ONE;
+		for(Relation r : dependency)
+		{
+			x = x.multiply(r.y).mod(n);
+			y = y.multiply(r.large).mod(n);
+			for(int f : r.factors) exponents[f]++;
+		}
+		for(int i = 1; i < primes.length; i++)
+			if(exponents[i] > 0)
+				y = y.multiply(BigInteger.valueOf(primes[i]).modPow(BigInteger.valueOf(exponents[i] / 2), n)).mod(n);
+		BigInteger g = x.subtract(y).gcd(n);
+		if(g.equals(BigInteger.ONE) || g.equals(n)) return null;
+		return g;
+	}
+
+    /**
+     * Factors n in this process: sieves a's 0, 1, 2, ... until solve() succeeds.
+     * (A perfect square just returns its root.)
+     * @requires n odd, composite, and not a higher perfect power
+     * @returns a nontrivial factor of n (not necessarily prime), or null if stop was set
+     */
+	public static BigInteger factor(BigInteger n, AtomicBoolean stop) {
+		BigInteger[] root = BigMath.sqrtRem(n);
+		if(root[1].signum() == 0) return root[0];
+		final Siqs siqs = new Siqs(n);
+		if(siqs.smallFactor() != null) return siqs.smallFactor();
+		Sink sink = new Sink() {
+			public void relation(BigInteger y, long[] primes) { siqs.addRelation(y, primes); }
+		};
+		for(long index = 0; !stop.get(); index++)
+		{
+			siqs.sieve(index, sink, stop);
+			if(siqs.relations() >= siqs.relationsNeeded())
+			{
+				BigInteger d = siqs.solve();
+				if(d != null) return d;
+			}
+		}
+		return null;
+	}
+
+	// Tonelli-Shanks: r with r^2 = a mod p, for an odd prime p and a quadratic residue a
+	private static int sqrtMod(long a, long p) {
+		if(p % 4 == 3) return (int) LongMath.powMod(a, (p + 1) / 4, p);
+		long q = p - 1;
+		int e = Long.numberOfTrailingZeros(q);
+		q >>= e;
+		long z = 2;
+		while(LongMath.powMod(z, (p - 1) / 2, p) != p - 1) z++;
+		long c = LongMath.powMod(z, q, p);
+		long r = LongMath.powMod(a, (q + 1) / 2, p);
+		long t = LongMath.powMod(a, q, p);
+		int mm = e;
+		while(t != 1)
+		{
+			int i = 0;
+			long tt = t;
+			while(tt != 1) { tt = tt * tt % p; i++; }
+			long bb = c;
+			for(int k = 0; k < mm - i - 1; k++) bb = bb * bb % p;
+			r = r * bb % p;
+			c = bb * bb % p;
+			t = t * c % p;
+			mm = i;
+		}
+		return (int) r;
+	}
+}
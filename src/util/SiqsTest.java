@@ -0,0 +1,37 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SiqsTest {
+
+	@Test
+	public void factorTest() {
+		// 1000000000000000003 * 1000000000000000009, 37 digits
+		BigInteger p = new BigInteger("1000000000000000003");
+		BigInteger q = new BigInteger("1000000000000000009");
+		BigInteger d = Siqs.factor(p.multiply(q), new AtomicBoolean());
+		assertTrue(p.equals(d) || q.equals(d));
+	}
+
+	@Test
+	public void relationTest() {
+		final BigInteger n = new BigInteger("1000000000000000003").multiply(new BigInteger("1000000000000000009"));
+		final Siqs siqs = new Siqs(n);
+		final int[] count = {0};
+		// Every relation the sieve reports checks out
+		siqs.sieve(7, new Siqs.Sink() {
+			public void relation(BigInteger y, long[] primes) {
+				assertTrue(siqs.addRelation(y, primes));
+				count[0]++;
+			}
+		}, new AtomicBoolean());
+		assertTrue(count[0] > 0);
+		// ... and a made-up one doesn't
+		assertFalse(siqs.addRelation(BigInteger.TEN, new long[] {-1, 3, 5}));
+	}
+}
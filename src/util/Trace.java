@@ -0,0 +1,168 @@
+package util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where a search says what it is doing, for debugging: one Trace per request, with the
+ * level of detail wanted and a sampling rate for the detailed events.
+ *
+ * Recording an event only puts references to its parts in a slot of a preallocated
+ * ring buffer shared by every Trace; nothing is formatted and no lock is taken. A
+ * background thread formats the events and writes them out, one line each:
+ * "MILLIS NAME LEVEL WHAT A B". If the writer falls CAPACITY events behind, new events
+ * are dropped (and counted) rather than holding up the search.
+ *
+ * OFF records nothing, and callers test on() before building an event's parts, so a
+ * search nobody is tracing pays one field test per event it would have recorded.
+ */
+public final class Trace {
+
+	public enum Level {
+		/** A few events per request: where it starts and ends. */
+		INFO,
+		/** Every factor as it is found. */
+		DEBUG
+	}
+
+	/** Records nothing. */
+	public static final Trace OFF = new Trace("", null, 1);
+
+	// Slots in the ring; a power of two
+	static final int CAPACITY = 1 << 14;
+
+	private static volatile PrintStream out = System.out;
+
+	private final String name;
+	private final Level level;		// the most detailed level recorded, or null for none
+	private final int sample;		// DEBUG events recorded: one in this many
+	private long debugEvents = 0;	// seen, recorded or not; racy, so the sampling is approximate
+
+    /**
+     * @requires sample >= 1
+     * @param name what every event's line starts with, after the time
+     * @param level the most detailed level to record; null for none
+     * @param sample record only every sample'th DEBUG event
+     */
+	public Trace(String name, Level level, int sample) {
+		this.name = name;
+		this.level = level;
+		this.sample = sample;
+	}
+
+    /**
+     * @effects events recorded from now on are written to stream (System.out until then)
+     */
+	public static void writeTo(PrintStream stream) {
+		out = stream;
+	}
+
+    /**
+     * @return true if events at level are recorded at all
+     */
+	public boolean on(Level level) {
+		return this.level != null && level.compareTo(this.level) <= 0;
+	}
+
+    /**
+     * @effects records "what a b" at level, if this Trace records that level (and, for
+     *  DEBUG, the sampling picks it). a and b may be null; they are turned into strings
+     *  later, on the writer thread, so they must not change after this.
+     */
+	public void event(Level level, String what, Object a, Object b) {
+		if(!on(level)) return;
+		if(level == Level.DEBUG && debugEvents++ % sample != 0) return;
+		Ring.RING.offer(System.currentTimeMillis(), this, level, what, a, b);
+	}
+
+    /**
+     * @effects waits until every event recorded so far has been written and flushed
+     */
+	static void drain() {
+		Ring ring = Ring.RING;
+		while(ring.tail.get() < ring.head.get()) LockSupport.parkNanos(100000);
+	}
+
+	// Built, with its writer thread, only once something is first recorded
+	private static final class Ring implements Runnable {
+		static final Ring RING = new Ring();
+		private static final int MASK = CAPACITY - 1;
+		private static final long IDLE_NANOS = 1000000;
+
+		private final long[] times = new long[CAPACITY];
+		private final Trace[] traces = new Trace[CAPACITY];
+		private final Level[] levels = new Level[CAPACITY];
+		private final String[] whats = new String[CAPACITY];
+		private final Object[] as = new Object[CAPACITY], bs = new Object[CAPACITY];
+		// Ticket t's slot holds t + 1 once the event in it is complete
+		private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+		// Tickets handed out, and tickets written and flushed
+		final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+
+		private Ring() {
+			Thread.ofPlatform().daemon().name("trace-writer").start(this);
+		}
+
+		void offer(long time, Trace trace, Level level, String what, Object a, Object b) {
+			long t;
+			do
+			{
+				t = head.get();
+				if(t - tail.get() >= CAPACITY)
+				{
+					dropped.incrementAndGet();
+					return;
+				}
+			}
+			while(!head.compareAndSet(t, t + 1));
+			int i = (int) t & MASK;
+			times[i] = time;
+			traces[i] = trace;
+			levels[i] = level;
+			whats[i] = what;
+			as[i] = a;
+			bs[i] = b;
+			published.set(i, t + 1);
+		}
+
+		public void run() {
+			long next = 0, reported = 0;
+			StringBuilder line = new StringBuilder();
+			while(true)
+			{
+				// Write everything published since last time, then free those slots in one go
+				long t = next;
+				PrintStream stream = out;
+				for(int i = (int) t & MASK; published.get(i) == t + 1; i = (int) t & MASK)
+				{
+					line.setLength(0);
+					line.append(times[i]).append(' ').append(traces[i].name).append(' ')
+						.append(levels[i]).append(' ').append(whats[i]);
+					if(as[i] != null) line.append(' ').append(as[i]);
+					if(bs[i] != null) line.append(' ').append(bs[i]);
+					stream.println(line);
+					traces[i] = null;
+					as[i] = bs[i] = null;
+					t++;
+				}
+				long lost = dropped.get();
+				if(lost > reported)
+				{
+					stream.println("trace: dropped " + (lost - reported) + " events");
+					reported = lost;
+				}
+				if(t == next)
+				{
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+				stream.flush();
+				tail.set(t);
+				next = t;
+			}
+		}
+	}
+}
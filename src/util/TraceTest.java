@@ -0,0 +1,76 @@
+package util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TraceTest {
+
+	@Test
+	public void searchTest() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Trace.writeTo(new PrintStream(bytes, true));
+		try
+		{
+			final Trace trace = new Trace("t1", Trace.Level.DEBUG, 1);
+			BigMath.FactorSink sink = new BigMath.FactorSink() {
+				public void found(BigInteger x) {}
+				public void progress(long x) {}
+				public Trace trace() {return trace;}
+			};
+			// 2^3 * 1000000007, all found by the sieve but the last
+			BigMath.primesOf(BigInteger.valueOf(8000000056L), BigInteger.valueOf(2), BigInteger.valueOf(100000),
+					new AtomicBoolean(), new AtomicReference<BigInteger>(), sink);
+			BigMath.primesOf(BigInteger.valueOf(1000).pow(3), BigInteger.valueOf(2), BigInteger.valueOf(100));
+			Trace.drain();
+			assertEquals("[t1 DEBUG found 8000000056 2, t1 DEBUG found 4000000028 2, t1 DEBUG found 2000000014 2, "
+					+ "t1 INFO cofactor 1000000007]", lines(bytes).toString());
+		}
+		finally
+		{
+			Trace.writeTo(System.out);
+		}
+	}
+
+	@Test
+	public void levelTest() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Trace.writeTo(new PrintStream(bytes, true));
+		try
+		{
+			Trace info = new Trace("t2", Trace.Level.INFO, 1), sampled = new Trace("t3", Trace.Level.DEBUG, 3);
+			assertFalse(Trace.OFF.on(Trace.Level.INFO));
+			assertTrue(info.on(Trace.Level.INFO));
+			assertFalse(info.on(Trace.Level.DEBUG));
+			for(int i = 0; i < 10; i++)
+			{
+				Trace.OFF.event(Trace.Level.INFO, "off", i, null);
+				info.event(Trace.Level.DEBUG, "debug", i, null);
+				sampled.event(Trace.Level.DEBUG, "sampled", i, null);
+			}
+			info.event(Trace.Level.INFO, "info", null, "b");
+			Trace.drain();
+			assertEquals("[t3 DEBUG sampled 0, t3 DEBUG sampled 3, t3 DEBUG sampled 6, t3 DEBUG sampled 9, t2 INFO info b]",
+					lines(bytes).toString());
+		}
+		finally
+		{
+			Trace.writeTo(System.out);
+		}
+	}
+
+	// Each line written, without its time
+	private static ArrayList<String> lines(ByteArrayOutputStream bytes) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for(String line : bytes.toString().split("\n"))
+			if(!line.isEmpty()) lines.add(line.substring(line.indexOf(' ') + 1).trim());
+		return lines;
+	}
+}